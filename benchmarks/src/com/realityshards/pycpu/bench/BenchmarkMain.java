@@ -0,0 +1,30 @@
+package com.realityshards.pycpu.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Runs the benchmarks with machine readable output.
+//
+// Takes the usual JMH command line, results are written as JSON to
+// jmh-result.json unless -rf/-rff say otherwise.
+public class BenchmarkMain
+{
+    public static void main(String[] args) throws Exception
+    {
+        List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+
+        if ( !jmhArgs.contains("-rf") )
+        {
+            jmhArgs.add("-rf");
+            jmhArgs.add("json");
+        }
+        if ( !jmhArgs.contains("-rff") )
+        {
+            jmhArgs.add("-rff");
+            jmhArgs.add("jmh-result.json");
+        }
+
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+}
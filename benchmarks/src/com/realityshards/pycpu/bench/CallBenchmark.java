@@ -0,0 +1,61 @@
+package com.realityshards.pycpu.bench;
+
+import com.realityshards.pycpu.PyCPU;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Cycles per second for code that does nothing but call and return,
+// so most of the time goes in to the FNC/FNR stack frames.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CallBenchmark
+{
+    static final int CYCLES = 10000;
+
+    @Param({"false", "true"})
+    public boolean jit;
+
+    private File osRom;
+    private PyCPU cpu;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        RomBuilder rom = new RomBuilder();
+
+        // main: call fn, fn: return straight away. The return lands back
+        // at 0 and the whole thing starts over.
+        rom.setval(PyCPU.REG_JUMP, 3);
+        rom.op(PyCPU.INST_FNC, 0, 0);
+        rom.op(PyCPU.INST_FNR, 0, 0);
+
+        osRom = RomBuilder.tempRom("call");
+        rom.writeTo(osRom);
+
+        cpu = RomBuilder.cpu(osRom, 0x1000);
+        cpu.init();
+        cpu.setJitEnabled(jit);
+        cpu.setIdleDetectionEnabled(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        osRom.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public PyCPU cycle()
+    {
+        cpu.cycle(CYCLES);
+        return cpu;
+    }
+}
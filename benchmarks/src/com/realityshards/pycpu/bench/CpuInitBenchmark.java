@@ -0,0 +1,54 @@
+package com.realityshards.pycpu.bench;
+
+import com.realityshards.pycpu.PyCPU;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+// Cost of PyCPU.init (ROM loads plus clearing RAM) for different RAM sizes.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CpuInitBenchmark
+{
+    @Param({"1024", "8192", "32768"})
+    public int ramSize;
+
+    @Param({"heap", "direct", "sparse"})
+    public String ram;
+
+    private File osRom;
+    private PyCPU cpu;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        RomBuilder rom = new RomBuilder();
+
+        for ( int i = 0; i < 256; i++ )
+        {
+            rom.op(PyCPU.INST_UINC, PyCPU.REG_GP0, PyCPU.REG_GP0);
+        }
+
+        osRom = RomBuilder.tempRom("init");
+        rom.writeTo(osRom);
+
+        cpu = RomBuilder.cpu(osRom, ramSize, ram);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        osRom.delete();
+    }
+
+    @Benchmark
+    public boolean init()
+    {
+        return cpu.init();
+    }
+}
@@ -0,0 +1,72 @@
+package com.realityshards.pycpu.bench;
+
+import com.realityshards.pycpu.PyCPU;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Cycles per second for a loop of RAM stores and loads through
+// REG_MEMADD/REG_MEMDATA, with the heap (RamBlock), off heap
+// (DirectRamBlock) and sparse (SparseRamBlock) RAM.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemoryBenchmark
+{
+    static final int CYCLES = 10000;
+
+    @Param({"false", "true"})
+    public boolean jit;
+
+    @Param({"heap", "direct", "sparse"})
+    public String ram;
+
+    private File osRom;
+    private PyCPU cpu;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        RomBuilder rom = new RomBuilder();
+
+        rom.setval(PyCPU.REG_GP0, 0x5A5A);
+        rom.setval(PyCPU.REG_JUMP, rom.here(0) + 2);
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            // Store GP0 at 0x8100 + i, then load it back in to GP1
+            rom.setval(PyCPU.REG_MEMADD, 0x8100 + i);
+            rom.op(PyCPU.INST_COPY, PyCPU.REG_GP0, PyCPU.REG_MEMDATA);
+            rom.op(PyCPU.INST_COPY, PyCPU.REG_MEMADD, PyCPU.REG_MEMADD);
+            rom.op(PyCPU.INST_COPY, PyCPU.REG_MEMDATA, PyCPU.REG_GP1);
+        }
+        rom.op(PyCPU.INST_COPY, PyCPU.REG_GP3, PyCPU.REG_GP3, PyCPU.JUMP_JUMP);
+
+        osRom = RomBuilder.tempRom("memory");
+        rom.writeTo(osRom);
+
+        cpu = RomBuilder.cpu(osRom, 0x1000, ram);
+        cpu.init();
+        cpu.setJitEnabled(jit);
+        cpu.setIdleDetectionEnabled(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        osRom.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public PyCPU cycle()
+    {
+        cpu.cycle(CYCLES);
+        return cpu;
+    }
+}
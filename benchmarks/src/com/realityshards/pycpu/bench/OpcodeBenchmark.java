@@ -0,0 +1,87 @@
+package com.realityshards.pycpu.bench;
+
+import com.realityshards.pycpu.PyCPU;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Cycles per second for a tight loop of a single instruction.
+//
+// FNC and FNR can't be looped on their own, CallBenchmark covers them.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpcodeBenchmark
+{
+    static final int CYCLES = 10000;
+    static final int BODY = 32;
+
+    @Param({"COPY", "SET0", "SET1", "SETN1", "UINC", "SINC", "UDEC", "SDEC",
+            "UADD", "SADD", "USUB", "SSUB", "UMUL", "SMUL", "UDIV", "SDIV",
+            "AND", "OR", "NOT", "NEG", "BSL", "BSR", "SETVAL"})
+    public String opcode;
+
+    @Param({"false", "true"})
+    public boolean jit;
+
+    private File osRom;
+    private PyCPU cpu;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        int inst = PyCPU.class.getField("INST_" + opcode).getByte(null);
+        RomBuilder rom = new RomBuilder();
+
+        // Non zero operands, so the divides don't trap.
+        rom.setval(PyCPU.REG_GP0, 0x1234);
+        rom.setval(PyCPU.REG_GP1, 0x0003);
+        rom.setval(PyCPU.REG_JUMP, rom.here(0) + 2);
+
+        for ( int i = 0; i < BODY; i++ )
+        {
+            if ( inst == PyCPU.INST_SETVAL )
+            {
+                rom.setval(PyCPU.REG_GP2, i);
+            }
+            else if ( inst == PyCPU.INST_COPY || inst == PyCPU.INST_SET0 ||
+                    inst == PyCPU.INST_SET1 || inst == PyCPU.INST_SETN1 )
+            {
+                rom.op(inst, PyCPU.REG_GP0, PyCPU.REG_GP2);
+            }
+            else
+            {
+                rom.op(inst, PyCPU.REG_GP0, PyCPU.REG_GP1);
+            }
+        }
+        rom.op(PyCPU.INST_COPY, PyCPU.REG_GP3, PyCPU.REG_GP3, PyCPU.JUMP_JUMP);
+
+        osRom = RomBuilder.tempRom("opcode");
+        rom.writeTo(osRom);
+
+        cpu = RomBuilder.cpu(osRom, 0x1000);
+        cpu.init();
+        cpu.setJitEnabled(jit);
+        // The loop would be skipped as idle, measure running it.
+        cpu.setIdleDetectionEnabled(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        osRom.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public PyCPU cycle()
+    {
+        cpu.cycle(CYCLES);
+        return cpu;
+    }
+}
@@ -0,0 +1,117 @@
+package com.realityshards.pycpu.bench;
+
+import com.realityshards.pycpu.DirectRamBlock;
+import com.realityshards.pycpu.OsROM;
+import com.realityshards.pycpu.PyCPU;
+import com.realityshards.pycpu.RamBlock;
+import com.realityshards.pycpu.SparseRamBlock;
+import com.realityshards.pycpu.UserRom;
+import com.realityshards.pycpu.interfaces.i_pybus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Assembles synthetic ROM images for the benchmarks.
+//
+// Words are written little endian, the format OsROM and UserRom load.
+class RomBuilder
+{
+    private char[] words = new char[64];
+    private int size = 0;
+
+    // IIIII JJJ SSSS DDDD
+    RomBuilder op(int inst, int source, int dest, int jump)
+    {
+        return word((inst << 11) | (jump << 8) | (source << 4) | dest);
+    }
+
+    RomBuilder op(int inst, int source, int dest)
+    {
+        return op(inst, source, dest, 0);
+    }
+
+    RomBuilder setval(int dest, int value)
+    {
+        op(PyCPU.INST_SETVAL, 0, dest);
+        return word(value);
+    }
+
+    RomBuilder word(int value)
+    {
+        if ( size == words.length )
+        {
+            char[] grown = new char[words.length * 2];
+            System.arraycopy(words, 0, grown, 0, size);
+            words = grown;
+        }
+        words[size++] = (char)value;
+        return this;
+    }
+
+    // Address the next word will be written to, for a ROM based at base.
+    int here(int base)
+    {
+        return base + size;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    void writeTo(File file) throws IOException
+    {
+        byte[] bytes = new byte[size * 2];
+
+        for ( int i = 0; i < size; i++ )
+        {
+            bytes[i * 2] = (byte)words[i];
+            bytes[i * 2 + 1] = (byte)(words[i] >> 8);
+        }
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try
+        {
+            fos.write(bytes);
+        }
+        finally
+        {
+            fos.close();
+        }
+    }
+
+    static File tempRom(String prefix) throws IOException
+    {
+        File file = File.createTempFile(prefix, ".dat");
+        file.deleteOnExit();
+        return file;
+    }
+
+    // UserRom takes the file name without the .dat extension.
+    static String userRomName(File file)
+    {
+        String path = file.getPath();
+        return path.substring(0, path.length() - ".dat".length());
+    }
+
+    // A CPU running the given OS ROM, with an empty User ROM.
+    static PyCPU cpu(File osRom, int ramSize)
+    {
+        return cpu(osRom, ramSize, "heap");
+    }
+
+    // ram is "heap" for a RamBlock, "direct" for a DirectRamBlock or
+    // "sparse" for a SparseRamBlock.
+    static PyCPU cpu(File osRom, int ramSize, String ram)
+    {
+        i_pybus ramBlock = ram.equals("direct") ? new DirectRamBlock(0x8000, ramSize) :
+                ram.equals("sparse") ? new SparseRamBlock(0x8000, ramSize) :
+                new RamBlock(0x8000, ramSize);
+
+        return new PyCPU(new UserRom(0x4000, 0x1000, osRom.getPath() + ".nouser"),
+                new OsROM(0x0000, osRom.getPath()),
+                ramBlock,
+                null);
+    }
+}
@@ -0,0 +1,61 @@
+package com.realityshards.pycpu.bench;
+
+import com.realityshards.pycpu.OsROM;
+import com.realityshards.pycpu.UserRom;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+// Time to load a ROM image from disk.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RomLoadBenchmark
+{
+    // Image size in words
+    @Param({"16", "1024", "4096"})
+    public int words;
+
+    private File image;
+    private OsROM osRom;
+    private UserRom userRom;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        RomBuilder rom = new RomBuilder();
+
+        for ( int i = 0; i < words; i++ )
+        {
+            rom.word(i * 0x9E37);
+        }
+
+        image = RomBuilder.tempRom("load");
+        rom.writeTo(image);
+
+        osRom = new OsROM(0x0000, image.getPath());
+        userRom = new UserRom(0x4000, 0x4000, RomBuilder.userRomName(image));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        image.delete();
+    }
+
+    @Benchmark
+    public boolean osRomInit()
+    {
+        return osRom.init();
+    }
+
+    @Benchmark
+    public boolean userRomInit()
+    {
+        return userRom.init();
+    }
+}
@@ -0,0 +1,408 @@
+package com.realityshards;
+
+import com.realityshards.pycpu.CpuFleet;
+import com.realityshards.pycpu.DirectRamBlock;
+import com.realityshards.pycpu.GuestProfiler;
+import com.realityshards.pycpu.OsROM;
+import com.realityshards.pycpu.PerfCounters;
+import com.realityshards.pycpu.PyCPU;
+import com.realityshards.pycpu.RamBlock;
+import com.realityshards.pycpu.SparseRamBlock;
+import com.realityshards.pycpu.SymbolTable;
+import com.realityshards.pycpu.UserRom;
+import com.realityshards.pycpu.interfaces.i_pybus;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+// Runs a batch of CPUs headless on a CpuFleet and reports how they did.
+//
+// CPUs are given the User ROMs round robin, all share the OS ROM. The run
+// goes in ticks of tickCycles until every CPU ran maxCycles or the time
+// limit is up, whichever comes first. A CPU that throws is stopped, the
+// others carry on.
+//
+// Cycles skipped in idle loops count towards maxCycles but not towards the
+// MIPS, which is the rate cycles were actually run at.
+public class BatchRunner
+{
+    private final String osRom;
+    private final String[] userRoms;
+    private final int userRomSize;
+    private final int ramSize;
+
+    private int cpuCount = 1;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long maxCycles = 1000000;
+    private long maxNanos = Long.MAX_VALUE;
+    private int tickCycles = 10000;
+    private boolean jit = false;
+    private int jitThreshold = -1;          // -1 leaves the CPU default
+    private int jitCodeLimit = -1;
+    private boolean threaded = false;
+    private boolean perf = false;
+    private int profileInterval = 0;        // 0 for no profiling
+    private SymbolTable symbols = null;
+    private String ram = "heap";
+
+    private PyCPU[] cpus;
+    private boolean[] booted;
+    private RuntimeException[] faults;
+    private long wallNanos;
+    private int ticks;
+
+    public BatchRunner (String osRom, String[] userRoms, int userRomSize, int ramSize)
+    {
+        this.osRom = osRom;
+        this.userRoms = userRoms;
+        this.userRomSize = userRomSize;
+        this.ramSize = ramSize;
+    }
+
+    public void setCpuCount (int cpuCount)
+    {
+        this.cpuCount = cpuCount;
+    }
+
+    public void setThreads (int threads)
+    {
+        this.threads = threads;
+    }
+
+    public void setMaxCycles (long maxCycles)
+    {
+        this.maxCycles = maxCycles;
+    }
+
+    public void setMaxSeconds (double seconds)
+    {
+        maxNanos = (long)(seconds * 1e9);
+    }
+
+    public void setTickCycles (int tickCycles)
+    {
+        this.tickCycles = tickCycles;
+    }
+
+    public void setJitEnabled (boolean jit)
+    {
+        this.jit = jit;
+    }
+
+    // Entries before a block is compiled, see PyCPU.setJitThreshold.
+    public void setJitThreshold (int entries)
+    {
+        jitThreshold = entries;
+    }
+
+    // Class file bytes each CPU's compiled blocks may take.
+    public void setJitCodeLimit (int bytes)
+    {
+        jitCodeLimit = bytes;
+    }
+
+    public void setThreadedEnabled (boolean threaded)
+    {
+        this.threaded = threaded;
+    }
+
+    public void setPerfCountersEnabled (boolean perf)
+    {
+        this.perf = perf;
+    }
+
+    // Samples every CPU's PC every interval cycles, 0 turns it off. See
+    // writeProfiles.
+    public void setProfileInterval (int interval)
+    {
+        profileInterval = interval;
+    }
+
+    // Names for the profiles, null to show addresses.
+    public void setSymbols (SymbolTable symbols)
+    {
+        this.symbols = symbols;
+    }
+
+    // "heap" for RamBlock, "direct" for DirectRamBlock (off heap) or
+    // "sparse" for SparseRamBlock (pages allocated on first write).
+    public void setRam (String ram)
+    {
+        this.ram = ram;
+    }
+
+    // Builds, boots and runs the CPUs. Returns false if any CPU threw.
+    public boolean run ()
+    {
+        cpus = new PyCPU[cpuCount];
+        booted = new boolean[cpuCount];
+        faults = new RuntimeException[cpuCount];
+
+        CpuFleet fleet = new CpuFleet(threads, tickCycles);
+        boolean clean = true;
+
+        try
+        {
+            for ( int i = 0; i < cpuCount; i++ )
+            {
+                cpus[i] = new PyCPU(new UserRom(0x4000, userRomSize, userRomName(i)),
+                        new OsROM(0x0000, osRom),
+                        ramBlock(),
+                        null);
+                booted[i] = cpus[i].init();
+                if ( jitThreshold > 0 )
+                {
+                    cpus[i].setJitThreshold(jitThreshold);
+                }
+                if ( jitCodeLimit > 0 )
+                {
+                    cpus[i].setJitCodeLimit(jitCodeLimit);
+                }
+                cpus[i].setJitEnabled(jit);
+                cpus[i].setThreadedEnabled(threaded);
+                cpus[i].setPerfCountersEnabled(perf);
+                if ( profileInterval > 0 )
+                {
+                    GuestProfiler profiler = new GuestProfiler(profileInterval);
+                    profiler.setSymbols(symbols);
+                    cpus[i].setProfiler(profiler);
+                }
+                fleet.add(cpus[i]);
+            }
+
+            long start = System.nanoTime();
+            long done = 0;
+            int running = cpuCount;
+
+            while ( done < maxCycles && running > 0 && System.nanoTime() - start < maxNanos )
+            {
+                int budget = (int)Math.min(tickCycles, maxCycles - done);
+
+                for ( int i = 0; i < cpuCount; i++ )
+                {
+                    // CPUs that threw stay stopped where they were
+                    fleet.setBudget(i, faults[i] == null ? budget : 0);
+                }
+
+                fleet.tick();
+                ticks++;
+                done += budget;
+
+                for ( int i = 0; i < cpuCount; i++ )
+                {
+                    if ( faults[i] == null && fleet.getFault(i) != null )
+                    {
+                        faults[i] = fleet.getFault(i);
+                        clean = false;
+                        running--;
+                    }
+                }
+            }
+            wallNanos = System.nanoTime() - start;
+        }
+        finally
+        {
+            fleet.shutdown();
+        }
+        return clean;
+    }
+
+    public void printJson (PrintStream out)
+    {
+        long total = totalCycles();
+        long idle = idleCycles();
+
+        out.println("{");
+        out.println("  \"osRom\": " + jsonString(osRom) + ",");
+        out.println("  \"cpus\": " + cpuCount + ",");
+        out.println("  \"threads\": " + threads + ",");
+        out.println("  \"ticks\": " + ticks + ",");
+        out.println("  \"wallSeconds\": " + format(wallNanos / 1e9) + ",");
+        out.println("  \"totalCycles\": " + total + ",");
+        out.println("  \"idleCycles\": " + idle + ",");
+        out.println("  \"mips\": " + format(mips(total - idle)) + ",");
+        out.println("  \"results\": [");
+        for ( int i = 0; i < cpuCount; i++ )
+        {
+            PyCPU cpu = cpus[i];
+            char flags = cpu.getRegister(PyCPU.REG_FLAGS);
+
+            out.print("    {\"cpu\": " + i +
+                    ", \"userRom\": " + jsonString(userRomName(i)) +
+                    ", \"booted\": " + booted[i] +
+                    ", \"cycles\": " + cpu.getCycleCount() +
+                    ", \"idleCycles\": " + cpu.getIdleCycleCount() +
+                    ", \"idle\": " + cpu.isIdle() +
+                    ", \"error\": " + ( ( flags & PyCPU.FLAG_ERROR_BIT ) != 0 ) +
+                    ", \"reset\": " + ( ( flags & PyCPU.FLAG_RESET_BIT ) != 0 ) +
+                    ", \"fault\": " + ( faults[i] == null ? "null" : jsonString(faults[i].toString()) ));
+            if ( cpu.getPerfCounters() != null )
+            {
+                out.print(", \"memoryErrors\": " + cpu.getPerfCounters().getMemoryErrors());
+            }
+            out.print(", \"registers\": {");
+            for ( int reg = 0; reg < 16; reg++ )
+            {
+                out.print(( reg == 0 ? "" : ", " ) + "\"" + PyCPU.registerName(reg) + "\": \"" + hex(cpu.getRegister(reg)) + "\"");
+            }
+            out.print(", \"INST\": \"" + hex(cpu.getInstruction()) + "\"}}");
+            out.println(i < cpuCount - 1 ? "," : "");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    // Two tables, the run summary and then one row per CPU.
+    public void printCsv (PrintStream out)
+    {
+        long total = totalCycles();
+        long idle = idleCycles();
+
+        out.println("cpus,threads,ticks,wallSeconds,totalCycles,idleCycles,mips");
+        out.println(cpuCount + "," + threads + "," + ticks + "," + format(wallNanos / 1e9) + "," + total + "," + idle + "," +
+                format(mips(total - idle)));
+        out.println();
+
+        StringBuilder header = new StringBuilder("cpu,userRom,booted,cycles,idleCycles,idle,error,reset,fault,memoryErrors");
+        for ( int reg = 0; reg < 16; reg++ )
+        {
+            header.append(',').append(PyCPU.registerName(reg));
+        }
+        out.println(header.append(",INST"));
+
+        for ( int i = 0; i < cpuCount; i++ )
+        {
+            PyCPU cpu = cpus[i];
+            char flags = cpu.getRegister(PyCPU.REG_FLAGS);
+            PerfCounters counters = cpu.getPerfCounters();
+            StringBuilder row = new StringBuilder();
+
+            row.append(i).append(',')
+                    .append(csvString(userRomName(i))).append(',')
+                    .append(booted[i]).append(',')
+                    .append(cpu.getCycleCount()).append(',')
+                    .append(cpu.getIdleCycleCount()).append(',')
+                    .append(cpu.isIdle()).append(',')
+                    .append(( flags & PyCPU.FLAG_ERROR_BIT ) != 0).append(',')
+                    .append(( flags & PyCPU.FLAG_RESET_BIT ) != 0).append(',')
+                    .append(faults[i] == null ? "" : csvString(faults[i].toString())).append(',')
+                    .append(counters == null ? "" : Long.toString(counters.getMemoryErrors()));
+            for ( int reg = 0; reg < 16; reg++ )
+            {
+                row.append(',').append(hex(cpu.getRegister(reg)));
+            }
+            out.println(row.append(',').append(hex(cpu.getInstruction())));
+        }
+    }
+
+    // The profiles of a run with setProfileInterval: every CPU's collapsed
+    // stacks in to one file, under a cpuN root frame, and its report to the
+    // other. Does nothing without profiling.
+    public void writeProfiles (PrintStream collapsed, PrintStream report)
+    {
+        for ( int i = 0; i < cpuCount; i++ )
+        {
+            GuestProfiler profiler = cpus[i].getProfiler();
+
+            if ( profiler == null )
+            {
+                continue;
+            }
+            profiler.writeCollapsed(collapsed, "cpu" + i);
+            report.println("# cpu " + i + " " + userRomName(i));
+            profiler.writeReport(report, 20);
+            report.println();
+        }
+    }
+
+    private i_pybus ramBlock ()
+    {
+        if ( ram.equals("direct") )
+        {
+            return new DirectRamBlock(0x8000, ramSize);
+        }
+        if ( ram.equals("sparse") )
+        {
+            return new SparseRamBlock(0x8000, ramSize);
+        }
+        return new RamBlock(0x8000, ramSize);
+    }
+
+    private String userRomName (int cpu)
+    {
+        // UserRom adds the .dat itself
+        String name = userRoms[cpu % userRoms.length];
+        return name.endsWith(".dat") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    private long totalCycles ()
+    {
+        long total = 0;
+
+        for ( PyCPU cpu : cpus )
+        {
+            total += cpu.getCycleCount();
+        }
+        return total;
+    }
+
+    private long idleCycles ()
+    {
+        long idle = 0;
+
+        for ( PyCPU cpu : cpus )
+        {
+            idle += cpu.getIdleCycleCount();
+        }
+        return idle;
+    }
+
+    // Cycles run (idle ones left out) per microsecond of wall time
+    private double mips (long cycles)
+    {
+        return wallNanos == 0 ? 0 : cycles * 1000.0 / wallNanos;
+    }
+
+    private static String hex (char value)
+    {
+        return String.format("0x%04x", (int)value);
+    }
+
+    private static String format (double value)
+    {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String jsonString (String value)
+    {
+        StringBuilder sb = new StringBuilder("\"");
+
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt(i);
+
+            if ( c == '"' || c == '\\' )
+            {
+                sb.append('\\').append(c);
+            }
+            else if ( c < 0x20 )
+            {
+                sb.append(String.format("\\u%04x", (int)c));
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String csvString (String value)
+    {
+        if ( value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 )
+        {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
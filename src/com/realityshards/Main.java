@@ -2,61 +2,125 @@ package com.realityshards;
 
 import com.realityshards.pycpu.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
 public class Main {
 
-    public static void main(String[] args) {
-	// write your code here
-        OsROM osROM;
-        UserRom usROM;
+    private static final String USAGE =
+            "usage: Main [-osrom file] [-roms userrom...] [-cpus n] [-cycles n] [-seconds s]\n" +
+            "            [-tick n] [-threads n] [-format json|csv] [-uromsize n] [-uramsize n] [-ram heap|direct|sparse]\n" +
+            "            [-jit] [-jitthreshold n] [-jitcode bytes] [-threaded] [-perf]\n" +
+            "            [-profile file] [-profileinterval n] [-symbols file]\n" +
+            "Runs n CPUs (the User ROMs are handed out round robin) until each ran -cycles\n" +
+            "cycles or -seconds passed, then prints throughput and every CPU's final state.\n" +
+            "-profile writes the sampled guest stacks to file and a report to file.txt.";
 
+    public static void main(String[] args) {
         CliArgs cliArgs = new CliArgs(args);
 
+        if ( cliArgs.switchPresent("-help") || cliArgs.switchPresent("-h") )
+        {
+            System.out.println(USAGE);
+            return;
+        }
+
         String OsRomName = cliArgs.switchValue("-osrom", "osrom.dat");
 
-        String UserRomName = cliArgs.switchValue("-usrrom", "userrom.dat");
+        String[] UserRomNames = cliArgs.switchValues("-roms");
+        if ( UserRomNames.length == 0 )
+        {
+            UserRomNames = new String[] { cliArgs.switchValue("-usrrom", "userrom") };
+        }
         int UserRomSize = cliArgs.switchIntValue("-uromsize", 0x1000);
 
         int RamSize = cliArgs.switchIntValue("-uramsize", 0x1000);
 
-
-
-        osROM = new OsROM(0x0000, OsRomName);
-
-        usROM = new UserRom(0x4000, UserRomSize, UserRomName);
-
-        RamBlock RAMBlock = new RamBlock(0x8000, RamSize);
-
-        System.out.println("About to instantiate CPU");
-
-        PyCPU cpu = new PyCPU(usROM, osROM, RAMBlock, null );
-
-        System.out.println("About to initialize CPU");
-
-        cpu.init();
-
-        System.out.println(cpu.toString());
-
-        System.out.println("CPU is initialized, now running 1 cycle");
-
-        cpu.cycle(1);
-        System.out.println(cpu.toString());
-
-        System.out.println("CPU is running 1 cycle");
-
-        cpu.cycle(1);
-        System.out.println(cpu.toString());
-
-        System.out.println("CPU is running 1 cycle");
-
-        cpu.cycle(1);
-        System.out.println(cpu.toString());
-
-        System.out.println("CPU is running 1 cycle");
-
-        cpu.cycle(1);
-        System.out.println(cpu.toString());
-
-        System.out.println("CPU Done.");
-
+        String format = cliArgs.switchValue("-format", "json");
+        if ( !format.equals("json") && !format.equals("csv") )
+        {
+            System.err.println("Unknown format " + format + "\n" + USAGE);
+            System.exit(2);
+        }
+
+        String ram = cliArgs.switchValue("-ram", "heap");
+        if ( !ram.equals("heap") && !ram.equals("direct") && !ram.equals("sparse") )
+        {
+            System.err.println("Unknown RAM type " + ram + "\n" + USAGE);
+            System.exit(2);
+        }
+
+        BatchRunner runner = new BatchRunner(OsRomName, UserRomNames, UserRomSize, RamSize);
+
+        runner.setCpuCount(cliArgs.switchIntValue("-cpus", UserRomNames.length));
+        runner.setThreads(cliArgs.switchIntValue("-threads", Runtime.getRuntime().availableProcessors()));
+        runner.setTickCycles(cliArgs.switchIntValue("-tick", 10000));
+        runner.setJitEnabled(cliArgs.switchPresent("-jit"));
+        runner.setJitThreshold(cliArgs.switchIntValue("-jitthreshold", -1));
+        runner.setJitCodeLimit(cliArgs.switchIntValue("-jitcode", -1));
+        runner.setThreadedEnabled(cliArgs.switchPresent("-threaded"));
+        runner.setPerfCountersEnabled(cliArgs.switchPresent("-perf"));
+        runner.setRam(ram);
+
+        String profile = cliArgs.switchValue("-profile", null);
+        if ( profile != null )
+        {
+            runner.setProfileInterval(cliArgs.switchIntValue("-profileinterval", 1000));
+            if ( cliArgs.switchPresent("-symbols") )
+            {
+                try
+                {
+                    runner.setSymbols(SymbolTable.load(new File(cliArgs.switchValue("-symbols"))));
+                }
+                catch ( IOException ex )
+                {
+                    System.err.println("Can't read symbols: " + ex.getMessage());
+                    System.exit(2);
+                }
+            }
+        }
+
+        if ( cliArgs.switchPresent("-seconds") )
+        {
+            runner.setMaxSeconds(cliArgs.switchDoubleValue("-seconds"));
+            // Without -cycles the time limit alone ends the run
+            runner.setMaxCycles(cliArgs.switchLongValue("-cycles", Long.MAX_VALUE));
+        }
+        else
+        {
+            runner.setMaxCycles(cliArgs.switchLongValue("-cycles", 1000000L));
+        }
+
+        boolean clean = runner.run();
+
+        if ( format.equals("csv") )
+        {
+            runner.printCsv(System.out);
+        }
+        else
+        {
+            runner.printJson(System.out);
+        }
+
+        if ( profile != null )
+        {
+            try ( PrintStream collapsed = new PrintStream(profile, "UTF-8");
+                  PrintStream report = new PrintStream(profile + ".txt", "UTF-8") )
+            {
+                runner.writeProfiles(collapsed, report);
+            }
+            catch ( IOException ex )
+            {
+                System.err.println("Can't write profile: " + ex.getMessage());
+                System.exit(2);
+            }
+        }
+
+        // A CPU that threw fails the run, for nightly regression scripts
+        if ( !clean )
+        {
+            System.exit(1);
+        }
     }
 }
@@ -0,0 +1,198 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pybus;
+import com.realityshards.pycpu.interfaces.i_pypollable;
+import com.realityshards.pycpu.interfaces.i_pystate;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+// Puts a peripheral backend on another thread than the CPU.
+//
+// The CPU thread maps this in place of the backend. Its writes are queued
+// on a ring without blocking, and its reads come from a shadow copy of the
+// peripheral's registers, so the CPU never takes a lock or waits on the
+// game thread.
+//
+// The backend thread (the game tick) calls drain() to hand the queued
+// writes to the backend in one batch, and post() to send input to the CPU.
+// Posted input is applied to the shadow copy by the CPU thread before its
+// next read.
+//
+// If the write ring is full the write fails, which the CPU reports as a
+// bus error (FLAG_ERROR_BIT). Size the ring for the writes a CPU can make
+// between two drains.
+public class AsyncPeripheral implements i_pypollable, i_pystate
+{
+    private final i_pybus backend;
+    private final char baseAddress;
+    private final int size;
+    private final char[] shadow;
+    private final SpscRing writes;      // CPU to backend
+    private final SpscRing input;       // Backend to CPU
+    private long droppedWrites = 0;     // Written by the CPU thread only
+    private volatile Runnable inputListener = null;
+
+    private final LongConsumer applyWrite = this::applyWrite;
+    private final LongConsumer applyInput = this::applyInput;
+
+    public AsyncPeripheral (i_pybus backend, int ringCapacity)
+    {
+        this.backend = backend;
+        baseAddress = backend.getBaseAddress();
+        size = backend.getSize();
+        shadow = new char[size];
+        writes = new SpscRing(ringCapacity);
+        input = new SpscRing(ringCapacity);
+    }
+
+    public i_pybus getBackend ()
+    {
+        return backend;
+    }
+
+    // CPU side
+
+    @Override
+    public int getSize ()
+    {
+        return size;
+    }
+
+    @Override
+    public char getBaseAddress ()
+    {
+        return baseAddress;
+    }
+
+    @Override
+    public char read_mem (char address)
+    {
+        if ( !input.isEmpty() )
+        {
+            input.drain(applyInput);
+        }
+
+        int offset = address - baseAddress;
+        if ( offset >= 0 && offset < size )
+        {
+            return shadow[offset];
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean write_mem (char address, char value)
+    {
+        int offset = address - baseAddress;
+
+        if ( offset < 0 || offset >= size )
+        {
+            return false;
+        }
+        if ( !writes.offer(pack(address, value)) )
+        {
+            droppedWrites++;
+            return false;
+        }
+        return true;
+    }
+
+    // Clears the shadow copy and any input not applied yet. The backend is
+    // left alone, it belongs to the other thread.
+    @Override
+    public boolean init ()
+    {
+        input.drain(value -> { });
+        Arrays.fill(shadow, (char)0);
+        return true;
+    }
+
+    // Writes refused because the ring was full
+    public long getDroppedWrites ()
+    {
+        return droppedWrites;
+    }
+
+    // Backend side
+
+    // Hands every queued CPU write to the backend's write_mem, in order.
+    // Returns the number of writes.
+    public int drain ()
+    {
+        return writes.drain(applyWrite);
+    }
+
+    // Sets what the CPU reads at address. Returns false if the input ring is
+    // full, the value is not sent.
+    public boolean post (char address, char value)
+    {
+        int offset = address - baseAddress;
+
+        if ( offset < 0 || offset >= size || !input.offer(pack(address, value)) )
+        {
+            return false;
+        }
+
+        Runnable listener = inputListener;
+        if ( listener != null )
+        {
+            listener.run();
+        }
+        return true;
+    }
+
+    // Called on the backend thread after each post, typically CpuRunner.wake
+    // so a CPU parked polling this peripheral picks the input up.
+    public void setInputListener (Runnable listener)
+    {
+        inputListener = listener;
+    }
+
+    // Save state, taken on the CPU thread, holds the shadow copy. Writes
+    // still queued for the backend are not part of it.
+
+    @Override
+    public int state_size ()
+    {
+        return size * 2;
+    }
+
+    @Override
+    public void save_state (ByteBuffer out)
+    {
+        if ( !input.isEmpty() )
+        {
+            input.drain(applyInput);
+        }
+        for ( char value : shadow )
+        {
+            out.putChar(value);
+        }
+    }
+
+    @Override
+    public void load_state (ByteBuffer in)
+    {
+        for ( int i = 0; i < size && in.remaining() >= 2; i++ )
+        {
+            shadow[i] = in.getChar();
+        }
+    }
+
+    private static long pack (char address, char value)
+    {
+        return ((long)address << 16) | value;
+    }
+
+    private void applyWrite (long packed)
+    {
+        backend.write_mem((char)(packed >>> 16), (char)packed);
+    }
+
+    private void applyInput (long packed)
+    {
+        shadow[(char)(packed >>> 16) - baseAddress] = (char)packed;
+    }
+}
@@ -0,0 +1,130 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pybus;
+
+// Atomic operations on a SharedRamBlock for the cores of a MultiCore.
+//
+// Every core maps its own port() at the same address. A port holds the
+// core's operands, so cores can't mix up each other's, and does the
+// operation when its register is read (a MEMADD write), leaving the old
+// value of the RAM word in MEMDATA.
+//
+// Registers, as word offsets from the base address:
+//   0 CORE_ID     This core's number, from 0, read only
+//   1 CORE_COUNT  Number of cores, read only
+//   2 ADDRESS     RAM address the operations work on
+//   3 EXPECT      Value CAS compares with
+//   4 VALUE       Value CAS and SWAP store, and ADD adds
+//   5 CAS         Stores VALUE if the word holds EXPECT, it worked if the
+//                 old value read equals EXPECT
+//   6 SWAP        Stores VALUE, test-and-set with VALUE 1
+//   7 ADD         Adds VALUE
+public class AtomicUnit
+{
+    public static final int REG_CORE_ID = 0;
+    public static final int REG_CORE_COUNT = 1;
+    public static final int REG_ADDRESS = 2;
+    public static final int REG_EXPECT = 3;
+    public static final int REG_VALUE = 4;
+    public static final int REG_CAS = 5;
+    public static final int REG_SWAP = 6;
+    public static final int REG_ADD = 7;
+    public static final int SIZE = 8;
+
+    private final SharedRamBlock ram;
+    private final char baseAddress;
+    private final int cores;
+
+    public AtomicUnit (SharedRamBlock ram, int baseAddress, int cores)
+    {
+        this.ram = ram;
+        this.baseAddress = (char)baseAddress;
+        this.cores = cores;
+    }
+
+    // The registers as seen by core.
+    public i_pybus port (int core)
+    {
+        return new Port(core);
+    }
+
+    private final class Port implements i_pybus
+    {
+        private final int core;
+        private char address;
+        private char expect;
+        private char value;
+
+        Port (int core)
+        {
+            this.core = core;
+        }
+
+        @Override
+        public int getSize ()
+        {
+            return SIZE;
+        }
+
+        @Override
+        public char getBaseAddress ()
+        {
+            return baseAddress;
+        }
+
+        @Override
+        public char read_mem (char address)
+        {
+            switch ( address - baseAddress )
+            {
+                case REG_CORE_ID:
+                    return (char)core;
+                case REG_CORE_COUNT:
+                    return (char)cores;
+                case REG_ADDRESS:
+                    return this.address;
+                case REG_EXPECT:
+                    return expect;
+                case REG_VALUE:
+                    return value;
+                case REG_CAS:
+                    return ram.compareAndSwap(this.address, expect, value);
+                case REG_SWAP:
+                    return ram.getAndSet(this.address, value);
+                case REG_ADD:
+                    return ram.getAndAdd(this.address, value);
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public boolean write_mem (char address, char value)
+        {
+            switch ( address - baseAddress )
+            {
+                case REG_ADDRESS:
+                    this.address = value;
+                    return true;
+                case REG_EXPECT:
+                    expect = value;
+                    return true;
+                case REG_VALUE:
+                    this.value = value;
+                    return true;
+                default:
+                    // The rest is read only
+                    return false;
+            }
+        }
+
+        @Override
+        public boolean init ()
+        {
+            address = 0;
+            expect = 0;
+            value = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pywatcher;
+
+import java.util.Arrays;
+
+// Compiled basic blocks of one CPU, keyed by the address they start at.
+//
+// Only hot code is compiled. Every time execution enters a block at an
+// address the count for that address goes up, and once it reaches the
+// threshold the block is compiled. Code that only runs a few times (boot
+// code, most of a player's program) stays in the interpreter and costs no
+// compile time or class memory.
+//
+// The class files of the blocks are capped in size. A block that doesn't
+// fit drops every block and count, so whatever is hot from then on gets
+// compiled again. A block bigger than the whole cap is never kept, its
+// address is marked so it isn't compiled again until its code changes.
+//
+// Pages are allocated on first use like DecodeCache. A write in to the code
+// a block was compiled from drops the block and the counts of the words
+// written, the new code has to get hot again before it is compiled.
+class BlockCache implements i_pywatcher
+{
+    static final int PAGE_BITS = 8;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+    static final int PAGE_COUNT = 0x10000 >> PAGE_BITS;
+
+    static final int DEFAULT_THRESHOLD = 32;
+    static final int MAX_THRESHOLD = 0xFFFE;
+    private static final char TOO_BIG = 0xFFFF;        // Heat of a block over the code limit
+    static final int DEFAULT_CODE_LIMIT = 256 * 1024;
+
+    static final class Entry
+    {
+        final CompiledBlock code;
+        final char start;       // Address of the first instruction
+        final int span;         // Words covered, including SETVAL immediates
+        final int length;       // Instructions (cycles) in the block
+        final byte[] ops;       // INST_* of each instruction, for PerfCounters
+        final int jump;         // JUMP_* the block ends with, JUMP_NONE if it runs on
+        final int codeSize;     // Bytes of the class file
+
+        Entry(CompiledBlock code, char start, int span, byte[] ops, int jump, int codeSize)
+        {
+            this.code = code;
+            this.start = start;
+            this.span = span;
+            this.length = ops.length;
+            this.ops = ops;
+            this.jump = jump;
+            this.codeSize = codeSize;
+        }
+
+        // Address of the index-th instruction of the block
+        char addressOf(int index)
+        {
+            int address = start;
+
+            for ( int i = 0; i < index && i < length; i++ )
+            {
+                address += ops[i] == PyCPU.INST_SETVAL ? 2 : 1;
+            }
+            return (char)address;
+        }
+
+        // Instructions from the start of the block up to and including
+        // the one at pc (or whose SETVAL immediate is at pc).
+        int instructionsTo(char pc)
+        {
+            int address = start;
+            int count = 0;
+
+            while ( count < length && address <= pc )
+            {
+                address += ops[count] == PyCPU.INST_SETVAL ? 2 : 1;
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private final Entry[][] pages = new Entry[PAGE_COUNT][];
+    private final char[][] heat = new char[PAGE_COUNT][];  // Entries per address, up to threshold
+    private int count = 0;
+    private int codeBytes = 0;
+    private int threshold = DEFAULT_THRESHOLD;
+    private int codeLimit = DEFAULT_CODE_LIMIT;
+
+    Entry get(char address)
+    {
+        Entry[] page = pages[address >> PAGE_BITS];
+
+        return page == null ? null : page[address & PAGE_MASK];
+    }
+
+    // Counts an entry in to the code at address, returns true once the
+    // block there is hot enough to compile.
+    boolean enter(char address)
+    {
+        if ( codeLimit <= 0 )
+        {
+            return false;
+        }
+
+        char[] page = heatPage(address);
+        int value = page[address & PAGE_MASK];
+
+        if ( value == TOO_BIG )
+        {
+            return false;
+        }
+        if ( value < threshold )
+        {
+            page[address & PAGE_MASK] = (char)++value;
+        }
+        return value >= threshold;
+    }
+
+    // Adds a block, dropping every block and count first if it doesn't fit
+    // in the code limit. Returns false without adding it if it is bigger
+    // than the whole limit, enter won't ask for it again.
+    boolean put(Entry entry)
+    {
+        if ( entry.codeSize > codeLimit )
+        {
+            heatPage(entry.start)[entry.start & PAGE_MASK] = TOO_BIG;
+            return false;
+        }
+        if ( codeBytes + entry.codeSize > codeLimit )
+        {
+            clear();
+        }
+
+        Entry[] page = pages[entry.start >> PAGE_BITS];
+
+        if ( page == null )
+        {
+            page = new Entry[PAGE_SIZE];
+            pages[entry.start >> PAGE_BITS] = page;
+        }
+        Entry old = page[entry.start & PAGE_MASK];
+        if ( old == null )
+        {
+            count++;
+        }
+        else
+        {
+            codeBytes -= old.codeSize;
+        }
+        page[entry.start & PAGE_MASK] = entry;
+        codeBytes += entry.codeSize;
+        return true;
+    }
+
+    int size()
+    {
+        return count;
+    }
+
+    // Class file bytes of the blocks held
+    int codeSize()
+    {
+        return codeBytes;
+    }
+
+    int getThreshold()
+    {
+        return threshold;
+    }
+
+    // Entries before a block is compiled, 1 compiles everything the first
+    // time it runs.
+    void setThreshold(int entries)
+    {
+        threshold = Math.max(1, Math.min(entries, MAX_THRESHOLD));
+    }
+
+    int getCodeLimit()
+    {
+        return codeLimit;
+    }
+
+    void setCodeLimit(int bytes)
+    {
+        if ( bytes > codeLimit )
+        {
+            // Blocks too big for the old limit get another go.
+            Arrays.fill(heat, null);
+        }
+        codeLimit = bytes;
+        if ( codeBytes > codeLimit )
+        {
+            clear();
+        }
+    }
+
+    // Drops every block that covers any word of [address, address + length),
+    // along with its count and the counts of the words written. Blocks
+    // that were too big may have shrunk, they can be compiled again.
+    void invalidate(int address, int length)
+    {
+        int end = Math.min(address + length, 0x10000);
+
+        for ( int start = Math.max(address - BlockCompiler.MAX_SPAN + 1, 0); start < address; start++ )
+        {
+            char[] page = heat[start >> PAGE_BITS];
+
+            if ( page != null && page[start & PAGE_MASK] == TOO_BIG )
+            {
+                page[start & PAGE_MASK] = 0;
+            }
+        }
+
+        for ( int addr = address; addr < end; )
+        {
+            char[] page = heat[addr >> PAGE_BITS];
+            int pageEnd = Math.min((addr | PAGE_MASK) + 1, end);
+
+            if ( page != null )
+            {
+                Arrays.fill(page, addr & PAGE_MASK, ((pageEnd - 1) & PAGE_MASK) + 1, (char)0);
+            }
+            addr = pageEnd;
+        }
+
+        // A block can start up to MAX_SPAN - 1 words before the first word written.
+        for ( int start = Math.max(address - BlockCompiler.MAX_SPAN + 1, 0); start < end; start++ )
+        {
+            Entry[] page = pages[start >> PAGE_BITS];
+
+            if ( page == null )
+            {
+                // Skip to the next page
+                start |= PAGE_MASK;
+                continue;
+            }
+
+            Entry entry = page[start & PAGE_MASK];
+
+            if ( entry != null && start + entry.span > address )
+            {
+                page[start & PAGE_MASK] = null;
+                count--;
+                codeBytes -= entry.codeSize;
+
+                char[] counts = heat[start >> PAGE_BITS];
+                if ( counts != null )
+                {
+                    counts[start & PAGE_MASK] = 0;
+                }
+            }
+        }
+    }
+
+    private char[] heatPage(char address)
+    {
+        char[] page = heat[address >> PAGE_BITS];
+
+        if ( page == null )
+        {
+            page = new char[PAGE_SIZE];
+            heat[address >> PAGE_BITS] = page;
+        }
+        return page;
+    }
+
+    void clear()
+    {
+        Arrays.fill(pages, null);
+        Arrays.fill(heat, null);
+        count = 0;
+        codeBytes = 0;
+    }
+
+    @Override
+    public void mem_changed(char address, int length)
+    {
+        invalidate(address, length);
+    }
+}
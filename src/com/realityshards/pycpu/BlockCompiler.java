@@ -0,0 +1,273 @@
+package com.realityshards.pycpu;
+
+// Compiles basic blocks of PyCPU code in to JVM classes.
+//
+// A block starts at the given PC and runs up to and including the first
+// instruction that can jump (any JUMP_* other than JUMP_NONE, FNC or FNR).
+// It also ends early before a word that isn't mapped, before a SETVAL whose
+// immediate isn't mapped, or after MAX_LENGTH instructions, in which case it
+// falls through and the CPU fetches the next instruction as usual.
+//
+// The generated code stores the PC before each instruction that can observe
+// it, does plain register moves on the register file directly and calls
+// BlockOps for everything else, so flags, memory and stack behaviour is
+// exactly the interpreter's.
+class BlockCompiler
+{
+    static final int MAX_LENGTH = 64;
+    static final int MAX_SPAN = MAX_LENGTH * 2;
+
+    private static final String BLOCK_NAME = "com/realityshards/pycpu/jit/Block_";
+    private static final String BLOCK_INTERFACE = "com/realityshards/pycpu/CompiledBlock";
+    private static final String OPS = "com/realityshards/pycpu/BlockOps";
+    private static final String RUN_DESCRIPTOR = "(L" + OPS + ";[C)Z";
+
+    // Locals of the run method
+    private static final int LOCAL_OPS = 1;
+    private static final int LOCAL_REGS = 2;
+
+    // Each block gets its own loader so its class can be unloaded once the
+    // block is invalidated and no longer referenced.
+    private static final class BlockLoader extends ClassLoader
+    {
+        BlockLoader()
+        {
+            super(CompiledBlock.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classFile)
+        {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+    // Returns the compiled block starting at start, or null if there is no
+    // mapped code there.
+    static BlockCache.Entry compile(MemoryMap code, char start)
+    {
+        int[] decoded = new int[MAX_LENGTH];
+        char[] immediates = new char[MAX_LENGTH];
+        char[] addresses = new char[MAX_LENGTH];
+        int length = 0;
+        int pc = start;
+        boolean jumps = false;
+
+        while ( length < MAX_LENGTH && pc <= 0xFFFF && !jumps )
+        {
+            int word = code.read((char)pc);
+
+            if ( word == MemoryMap.UNMAPPED )
+            {
+                break;
+            }
+
+            int entry = DecodeCache.decode((char)word);
+            int span = 1;
+
+            if ( ( entry & DecodeCache.IMMEDIATE_BIT ) != 0 )
+            {
+                int immediate = pc < 0xFFFF ? code.read((char)(pc + 1)) : MemoryMap.UNMAPPED;
+
+                if ( immediate == MemoryMap.UNMAPPED )
+                {
+                    // Leave this one to the interpreter, it resets the CPU.
+                    break;
+                }
+                immediates[length] = (char)immediate;
+                span = 2;
+            }
+
+            decoded[length] = entry;
+            addresses[length] = (char)pc;
+            jumps = ( entry & DecodeCache.ALWAYS_JUMP_BIT ) != 0 || DecodeCache.jump(entry) != PyCPU.JUMP_NONE;
+            length++;
+            pc += span;
+        }
+
+        if ( length == 0 )
+        {
+            return null;
+        }
+
+        String name = BLOCK_NAME + Integer.toHexString(start);
+        ClassAssembler asm = new ClassAssembler(name, BLOCK_INTERFACE);
+
+        for ( int i = 0; i < length; i++ )
+        {
+            emitInstruction(asm, decoded[i], addresses[i], immediates[i], i == length - 1);
+        }
+
+        int last = decoded[length - 1];
+        int jump = PyCPU.JUMP_NONE;
+        if ( DecodeCache.op(last) == PyCPU.INST_FNR )
+        {
+            // fnr() took the jump itself.
+            jump = PyCPU.JUMP_JUMP;
+        }
+        else if ( jumps )
+        {
+            jump = ( last & DecodeCache.ALWAYS_JUMP_BIT ) != 0 ? PyCPU.JUMP_JUMP : DecodeCache.jump(last);
+
+            asm.aload(LOCAL_OPS);
+            asm.pushInt(jump);
+            asm.invokeInterface(OPS, "branch", "(I)Z", 1);
+        }
+        else
+        {
+            asm.pushInt(1);
+        }
+        asm.op(ClassAssembler.IRETURN);
+
+        byte[] classFile = asm.toByteArray("run", RUN_DESCRIPTOR, 4, 3);
+
+        try
+        {
+            Class<?> blockClass = new BlockLoader().define(name.replace('/', '.'), classFile);
+            CompiledBlock block = (CompiledBlock)blockClass.getDeclaredConstructor().newInstance();
+
+            byte[] ops = new byte[length];
+            for ( int i = 0; i < length; i++ )
+            {
+                ops[i] = (byte)DecodeCache.op(decoded[i]);
+            }
+            return new BlockCache.Entry(block, start, pc - start, ops, jump, classFile.length);
+        }
+        catch ( ReflectiveOperationException ex )
+        {
+            throw new IllegalStateException("Failed to load compiled block at 0x" + Integer.toHexString(start), ex);
+        }
+    }
+
+    private static void emitInstruction(ClassAssembler asm, int entry, char address, char immediate, boolean last)
+    {
+        int op = DecodeCache.op(entry);
+        int source = DecodeCache.source(entry);
+        int dest = DecodeCache.dest(entry);
+        boolean direct = isDirect(dest);
+
+        // After a SETVAL the PC points at its immediate word.
+        char pc = op == PyCPU.INST_SETVAL ? (char)(address + 1) : address;
+
+        boolean inline = ( op == PyCPU.INST_COPY && direct && source != PyCPU.REG_FLAGS ) ||
+                ( op == PyCPU.INST_SETVAL && direct );
+
+        if ( !inline || last || source == PyCPU.REG_PC )
+        {
+            storeRegister(asm, PyCPU.REG_PC, pc);
+        }
+
+        switch ( op )
+        {
+            case PyCPU.INST_COPY:
+                if ( inline )
+                {
+                    // regs[dest] = regs[source]
+                    asm.aload(LOCAL_REGS);
+                    asm.pushInt(dest);
+                    asm.aload(LOCAL_REGS);
+                    asm.pushInt(source);
+                    asm.op(ClassAssembler.CALOAD);
+                    asm.op(ClassAssembler.CASTORE);
+                }
+                else
+                {
+                    call(asm, "copy", "(II)V", source, dest);
+                }
+                break;
+            case PyCPU.INST_SET0:
+                call(asm, "set", "(II)V", dest, 0);
+                break;
+            case PyCPU.INST_SET1:
+                call(asm, "set", "(II)V", dest, 1);
+                break;
+            case PyCPU.INST_SETN1:
+                call(asm, "set", "(II)V", dest, -1);
+                break;
+            case PyCPU.INST_SINC:
+            case PyCPU.INST_UINC:
+                call(asm, "inc", "(IZ)V", source, op == PyCPU.INST_SINC ? 1 : 0);
+                break;
+            case PyCPU.INST_SDEC:
+            case PyCPU.INST_UDEC:
+                call(asm, "dec", "(IZ)V", source, op == PyCPU.INST_SDEC ? 1 : 0);
+                break;
+            case PyCPU.INST_SADD:
+            case PyCPU.INST_UADD:
+                call(asm, "add", "(IIZ)V", source, dest, op == PyCPU.INST_SADD ? 1 : 0);
+                break;
+            case PyCPU.INST_SSUB:
+            case PyCPU.INST_USUB:
+                call(asm, "sub", "(IIZ)V", source, dest, op == PyCPU.INST_SSUB ? 1 : 0);
+                break;
+            case PyCPU.INST_SMUL:
+            case PyCPU.INST_UMUL:
+                call(asm, "mul", "(IIZ)V", source, dest, op == PyCPU.INST_SMUL ? 1 : 0);
+                break;
+            case PyCPU.INST_SDIV:
+            case PyCPU.INST_UDIV:
+                call(asm, "div", "(IIZ)V", source, dest, op == PyCPU.INST_SDIV ? 1 : 0);
+                break;
+            case PyCPU.INST_AND:
+                call(asm, "and", "(II)V", source, dest);
+                break;
+            case PyCPU.INST_OR:
+                call(asm, "or", "(II)V", source, dest);
+                break;
+            case PyCPU.INST_NOT:
+                call(asm, "not", "(I)V", source);
+                break;
+            case PyCPU.INST_NEG:
+                call(asm, "neg", "(I)V", source);
+                break;
+            case PyCPU.INST_BSL:
+                call(asm, "bsl", "(I)V", source);
+                break;
+            case PyCPU.INST_BSR:
+                call(asm, "bsr", "(I)V", source);
+                break;
+            case PyCPU.INST_SETVAL:
+                if ( inline )
+                {
+                    storeRegister(asm, dest, immediate);
+                }
+                else
+                {
+                    call(asm, "write", "(II)V", dest, immediate);
+                }
+                break;
+            case PyCPU.INST_FNC:
+                call(asm, "fnc", "()V");
+                break;
+            case PyCPU.INST_FNR:
+                // Always last, it jumps. Leaves what run returns on the stack.
+                call(asm, "fnr", "()Z");
+                break;
+            default:
+                // Unused opcodes do nothing
+                break;
+        }
+    }
+
+    private static boolean isDirect(int reg)
+    {
+        return ( PyCPU.REG_WRITE_SLOW_MASK & (1 << reg) ) == 0;
+    }
+
+    private static void storeRegister(ClassAssembler asm, int reg, char value)
+    {
+        asm.aload(LOCAL_REGS);
+        asm.pushInt(reg);
+        asm.pushInt(value);
+        asm.op(ClassAssembler.CASTORE);
+    }
+
+    private static void call(ClassAssembler asm, String method, String descriptor, int... args)
+    {
+        asm.aload(LOCAL_OPS);
+        for ( int arg : args )
+        {
+            asm.pushInt(arg);
+        }
+        asm.invokeInterface(OPS, method, descriptor, args.length);
+    }
+}
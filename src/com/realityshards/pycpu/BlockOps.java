@@ -0,0 +1,50 @@
+package com.realityshards.pycpu;
+
+// Operations compiled blocks call back in to the CPU for, these are the
+// instructions that touch flags, memory or the stack. Plain register moves
+// are done by the compiled code directly on the register file.
+//
+// Register and jump arguments are the REG_* and JUMP_* values.
+public interface BlockOps
+{
+    void copy(int source, int dest);
+
+    void set(int dest, int value);
+
+    void write(int dest, int value);
+
+    void inc(int source, boolean signed);
+
+    void dec(int source, boolean signed);
+
+    void add(int source, int source_two, boolean signed);
+
+    void sub(int source, int source_two, boolean signed);
+
+    void mul(int source, int source_two, boolean signed);
+
+    void div(int source, int source_two, boolean signed);
+
+    void and(int source, int source_two);
+
+    void or(int source, int source_two);
+
+    void not(int source);
+
+    void neg(int source);
+
+    void bsl(int source);
+
+    void bsr(int source);
+
+    void fnc();
+
+    // FNR together with the jump that comes with it, returns like branch.
+    // The FNR that ends an interrupt handler loads the interrupted PC
+    // instead of jumping.
+    boolean fnr();
+
+    // Evaluates the jump condition, loading the PC with the jump address if
+    // it is taken. Returns true if the PC should be incremented instead.
+    boolean branch(int jump);
+}
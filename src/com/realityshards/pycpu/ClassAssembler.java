@@ -0,0 +1,259 @@
+package com.realityshards.pycpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+// Just enough of a class file writer to build the classes BlockCompiler
+// generates: a public final class with a no argument constructor and one
+// public method made of straight line code.
+//
+// Without any branches in the method there is no need for a StackMapTable,
+// so the output is a plain version 52 (Java 8) class.
+class ClassAssembler
+{
+    private static final int CLASS_VERSION = 52;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // Opcodes used by the generated code
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int ALOAD_0 = 0x2A;
+    static final int CALOAD = 0x34;
+    static final int CASTORE = 0x55;
+    static final int IRETURN = 0xAC;
+    static final int RETURN = 0xB1;
+    static final int INVOKESPECIAL = 0xB7;
+    static final int INVOKEINTERFACE = 0xB9;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+    private final DataOutputStream code = new DataOutputStream(codeBytes);
+
+    private final String className;
+    private final String interfaceName;
+
+    ClassAssembler(String className, String interfaceName)
+    {
+        this.className = className;
+        this.interfaceName = interfaceName;
+    }
+
+    // Bytecode of the single method, call these in program order.
+
+    void aload(int local)
+    {
+        op(ALOAD_0 + local);
+    }
+
+    void pushInt(int value)
+    {
+        if ( value >= -1 && value <= 5 )
+        {
+            op(ICONST_0 + value);
+        }
+        else if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE )
+        {
+            op(BIPUSH);
+            op(value);
+        }
+        else
+        {
+            // Only used for 16 bit values, castore keeps the low 16 bits so
+            // a char above 0x7FFF can be pushed as the equivalent short.
+            op(SIPUSH);
+            u2((short)value);
+        }
+    }
+
+    void op(int opcode)
+    {
+        try
+        {
+            code.writeByte(opcode);
+        }
+        catch ( IOException ex )
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    void invokeInterface(String owner, String name, String descriptor, int argWords)
+    {
+        op(INVOKEINTERFACE);
+        u2(interfaceMethodRef(owner, name, descriptor));
+        op(argWords + 1);
+        op(0);
+    }
+
+    // Builds the class file, method is the name and descriptor of the one
+    // method whose code was written with the calls above.
+    byte[] toByteArray(String methodName, String methodDescriptor, int maxStack, int maxLocals)
+    {
+        try
+        {
+            int thisClass = classRef(className);
+            int superClass = classRef("java/lang/Object");
+            int iface = classRef(interfaceName);
+            int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+            int initName = utf8("<init>");
+            int initDesc = utf8("()V");
+            int runName = utf8(methodName);
+            int runDesc = utf8(methodDescriptor);
+            int codeName = utf8("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0); // fields
+
+            out.writeShort(2); // methods
+
+            // public <init>() { super(); }
+            byte[] init = { (byte)ALOAD_0, (byte)INVOKESPECIAL, (byte)(objectInit >> 8), (byte)objectInit, (byte)RETURN };
+            writeMethod(out, initName, initDesc, codeName, init, 1, 1);
+
+            writeMethod(out, runName, runDesc, codeName, codeBytes.toByteArray(), maxStack, maxLocals);
+
+            out.writeShort(0); // class attributes
+            out.flush();
+
+            return bytes.toByteArray();
+        }
+        catch ( IOException ex )
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void writeMethod(DataOutputStream out, int name, int descriptor, int codeName,
+                             byte[] body, int maxStack, int maxLocals) throws IOException
+    {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+
+        out.writeShort(codeName);
+        out.writeInt(12 + body.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // code attributes
+    }
+
+    private void u2(int value)
+    {
+        op(value >> 8);
+        op(value);
+    }
+
+    private int utf8(String value) throws IOException
+    {
+        Integer index = poolIndex.get("U" + value);
+
+        if ( index == null )
+        {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+            index = poolCount++;
+            poolIndex.put("U" + value, index);
+        }
+        return index;
+    }
+
+    private int classRef(String name) throws IOException
+    {
+        Integer index = poolIndex.get("C" + name);
+
+        if ( index == null )
+        {
+            int nameIndex = utf8(name);
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(nameIndex);
+            index = poolCount++;
+            poolIndex.put("C" + name, index);
+        }
+        return index;
+    }
+
+    private int nameAndType(String name, String descriptor) throws IOException
+    {
+        Integer index = poolIndex.get("N" + name + descriptor);
+
+        if ( index == null )
+        {
+            int nameIndex = utf8(name);
+            int descIndex = utf8(descriptor);
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descIndex);
+            index = poolCount++;
+            poolIndex.put("N" + name + descriptor, index);
+        }
+        return index;
+    }
+
+    private int methodRef(String owner, String name, String descriptor) throws IOException
+    {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    private int interfaceMethodRef(String owner, String name, String descriptor)
+    {
+        try
+        {
+            return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+        }
+        catch ( IOException ex )
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) throws IOException
+    {
+        String key = "M" + tag + owner + "." + name + descriptor;
+        Integer index = poolIndex.get(key);
+
+        if ( index == null )
+        {
+            int ownerIndex = classRef(owner);
+            int natIndex = nameAndType(name, descriptor);
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(natIndex);
+            index = poolCount++;
+            poolIndex.put(key, index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,11 @@
+package com.realityshards.pycpu;
+
+// Implemented by the classes BlockCompiler generates for a basic block.
+//
+// run executes every instruction of the block against the register file and
+// returns true if the PC should be incremented past the last instruction,
+// false if the block ended in a taken jump (the PC already holds the target).
+public interface CompiledBlock
+{
+    boolean run(BlockOps ops, char[] regs);
+}
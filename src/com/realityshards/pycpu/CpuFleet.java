@@ -0,0 +1,306 @@
+package com.realityshards.pycpu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+// Drives many CPUs in parallel, one tick at a time.
+//
+// Every CPU gets a cycle budget per tick. A tick splits the CPUs over a work
+// stealing ForkJoinPool and returns once all of them ran their budget, so
+// the caller (the server tick) sees all CPUs at the same point in time.
+//
+// CPUs are not thread safe, add, remove and budget changes must not happen
+// while a tick is running.
+public class CpuFleet
+{
+    // CPUs per leaf task, small enough to balance well, large enough that
+    // the fork/join overhead doesn't matter.
+    private static final int LEAF_SIZE = 16;
+
+    private static final class Slot
+    {
+        final PyCPU cpu;
+        int budget;
+        long nanos;         // Time spent in the last tick
+        long cycles;        // Cycles run in the last tick
+        RuntimeException fault;
+
+        Slot(PyCPU cpu, int budget)
+        {
+            this.cpu = cpu;
+            this.budget = budget;
+        }
+    }
+
+    public static final class TickReport
+    {
+        private final long wallNanos;
+        private final long cyclesExecuted;
+        private final int cpuCount;
+        private final int[] slowCpus;
+        private final long[] slowNanos;
+        private final int[] faultedCpus;
+        private final int idleCount;
+
+        TickReport(long wallNanos, long cyclesExecuted, int cpuCount, int[] slowCpus, long[] slowNanos, int[] faultedCpus, int idleCount)
+        {
+            this.wallNanos = wallNanos;
+            this.cyclesExecuted = cyclesExecuted;
+            this.cpuCount = cpuCount;
+            this.slowCpus = slowCpus;
+            this.slowNanos = slowNanos;
+            this.faultedCpus = faultedCpus;
+            this.idleCount = idleCount;
+        }
+
+        public long getWallNanos()
+        {
+            return wallNanos;
+        }
+
+        public long getCyclesExecuted()
+        {
+            return cyclesExecuted;
+        }
+
+        public int getCpuCount()
+        {
+            return cpuCount;
+        }
+
+        // Indexes of the CPUs that took longer than the slow threshold, slowest first.
+        public int[] getSlowCpus()
+        {
+            return slowCpus.clone();
+        }
+
+        // Time taken by each CPU in getSlowCpus(), in the same order.
+        public long[] getSlowNanos()
+        {
+            return slowNanos.clone();
+        }
+
+        // Indexes of the CPUs that threw while running, see CpuFleet.getFault.
+        public int[] getFaultedCpus()
+        {
+            return faultedCpus.clone();
+        }
+
+        // CPUs that ended the tick in an idle loop, see PyCPU.isIdle.
+        public int getIdleCount()
+        {
+            return idleCount;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "tick{" +
+                    "cpus=" + cpuCount +
+                    ", wallMs=" + (wallNanos / 1000000.0) +
+                    ", cycles=" + cyclesExecuted +
+                    ", idle=" + idleCount +
+                    ", slow=" + Arrays.toString(slowCpus) +
+                    ", faulted=" + Arrays.toString(faultedCpus) +
+                    '}';
+        }
+    }
+
+    private final class TickTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        TickTask(int from, int to)
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if ( to - from <= LEAF_SIZE )
+            {
+                for ( int i = from; i < to; i++ )
+                {
+                    runSlot(slots.get(i));
+                }
+            }
+            else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TickTask(from, mid), new TickTask(mid, to));
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final ArrayList<Slot> slots = new ArrayList<Slot>();
+    private int defaultBudget;
+    private long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public CpuFleet (int threads, int cyclesPerTick)
+    {
+        pool = new ForkJoinPool(threads);
+        defaultBudget = cyclesPerTick;
+    }
+
+    public CpuFleet (int cyclesPerTick)
+    {
+        this(Runtime.getRuntime().availableProcessors(), cyclesPerTick);
+    }
+
+    // Adds a CPU with the default budget, returns its index.
+    public synchronized int add(PyCPU cpu)
+    {
+        slots.add(new Slot(cpu, defaultBudget));
+        return slots.size() - 1;
+    }
+
+    // Removes a CPU, the indexes of the CPUs after it shift down by one.
+    public synchronized PyCPU remove(int index)
+    {
+        return slots.remove(index).cpu;
+    }
+
+    public synchronized int size()
+    {
+        return slots.size();
+    }
+
+    public synchronized PyCPU get(int index)
+    {
+        return slots.get(index).cpu;
+    }
+
+    public synchronized void setBudget(int index, int cyclesPerTick)
+    {
+        slots.get(index).budget = cyclesPerTick;
+    }
+
+    public synchronized int getBudget(int index)
+    {
+        return slots.get(index).budget;
+    }
+
+    // Budget given to CPUs added after this call.
+    public synchronized void setDefaultBudget(int cyclesPerTick)
+    {
+        defaultBudget = cyclesPerTick;
+    }
+
+    // CPUs taking longer than this in a tick are reported as slow.
+    public synchronized void setSlowThreshold(long time, TimeUnit unit)
+    {
+        slowThresholdNanos = unit.toNanos(time);
+    }
+
+    // The exception the CPU threw in the last tick, or null.
+    public synchronized RuntimeException getFault(int index)
+    {
+        return slots.get(index).fault;
+    }
+
+    // Runs every CPU for its budget and waits for all of them to finish.
+    public synchronized TickReport tick()
+    {
+        long start = System.nanoTime();
+
+        if ( !slots.isEmpty() )
+        {
+            pool.invoke(new TickTask(0, slots.size()));
+        }
+
+        long wall = System.nanoTime() - start;
+        long cycles = 0;
+        int slowCount = 0;
+        int faultCount = 0;
+        int idleCount = 0;
+
+        for ( Slot slot : slots )
+        {
+            cycles += slot.cycles;
+            if ( slot.cpu.isIdle() )
+            {
+                idleCount++;
+            }
+            if ( slot.nanos > slowThresholdNanos )
+            {
+                slowCount++;
+            }
+            if ( slot.fault != null )
+            {
+                faultCount++;
+            }
+        }
+
+        int[] slow = new int[slowCount];
+        int[] faulted = new int[faultCount];
+        slowCount = 0;
+        faultCount = 0;
+
+        for ( int i = 0; i < slots.size(); i++ )
+        {
+            Slot slot = slots.get(i);
+            if ( slot.nanos > slowThresholdNanos )
+            {
+                slow[slowCount++] = i;
+            }
+            if ( slot.fault != null )
+            {
+                faulted[faultCount++] = i;
+            }
+        }
+
+        // Slowest first, insertion sort is fine for the handful of slow CPUs.
+        long[] slowNanos = new long[slow.length];
+        for ( int i = 0; i < slow.length; i++ )
+        {
+            int index = slow[i];
+            long nanos = slots.get(index).nanos;
+            int j = i;
+
+            while ( j > 0 && slowNanos[j - 1] < nanos )
+            {
+                slow[j] = slow[j - 1];
+                slowNanos[j] = slowNanos[j - 1];
+                j--;
+            }
+            slow[j] = index;
+            slowNanos[j] = nanos;
+        }
+
+        return new TickReport(wall, cycles, slots.size(), slow, slowNanos, faulted, idleCount);
+    }
+
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    private static void runSlot(Slot slot)
+    {
+        long before = slot.cpu.getCycleCount();
+        long start = System.nanoTime();
+
+        slot.fault = null;
+        try
+        {
+            slot.cpu.cycle(slot.budget);
+        }
+        catch ( RuntimeException ex )
+        {
+            // One broken program must not take the rest of the tick with it.
+            slot.fault = ex;
+        }
+
+        slot.nanos = System.nanoTime() - start;
+        slot.cycles = slot.cpu.getCycleCount() - before;
+    }
+}
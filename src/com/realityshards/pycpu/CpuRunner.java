@@ -0,0 +1,200 @@
+package com.realityshards.pycpu;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs one CPU on its own, as an alternative to ticking a CpuFleet.
+//
+// The CPU runs in chunks of cycles as a task on a shared executor. After
+// each chunk the task submits itself again, so many runners take turns on
+// a few threads. A CPU that ends a chunk idle (PyCPU.isIdle, spinning in a
+// loop or polling i_pypollable devices that didn't change) is parked: no
+// task is queued for it and it holds no thread until wake() is called,
+// for example from AsyncPeripheral.setInputListener when input arrives.
+// Tens of thousands of mostly waiting CPUs cost little more than their
+// memory.
+//
+// A CPU idle polling RAM (PyCPU.isIdlePollingMemory) isn't parked, as a
+// write to the RAM from outside the CPU comes without a wake. It keeps
+// getting chunks, each one mostly skipped as idle.
+//
+// The CPU must not be used by anything else between start() and the runner
+// stopping. An executor with FIFO queues (ForkJoinPool in async mode, a
+// ThreadPoolExecutor) keeps the runners fair.
+public class CpuRunner
+{
+    private static final int STOPPED = 0;
+    private static final int QUEUED = 1;
+    private static final int RUNNING = 2;
+    private static final int PARKED = 3;
+
+    private final PyCPU cpu;
+    private final Executor executor;
+    private final int chunkCycles;
+    private final Runnable step = this::step;
+
+    private final AtomicInteger state = new AtomicInteger(STOPPED);
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private volatile boolean stopRequested = false;
+    private volatile RuntimeException fault = null;
+
+    public CpuRunner (PyCPU cpu, Executor executor, int chunkCycles)
+    {
+        if ( chunkCycles <= 0 )
+        {
+            throw new IllegalArgumentException("chunkCycles must be positive");
+        }
+        this.cpu = cpu;
+        this.executor = executor;
+        this.chunkCycles = chunkCycles;
+    }
+
+    public PyCPU getCpu ()
+    {
+        return cpu;
+    }
+
+    // Starts running the CPU from its current state. Throws
+    // IllegalStateException if it is already running.
+    public synchronized void start ()
+    {
+        if ( state.get() != STOPPED )
+        {
+            throw new IllegalStateException("CPU runner already started");
+        }
+        stopRequested = false;
+        fault = null;
+        woken.set(false);
+        state.set(QUEUED);
+        submit();
+    }
+
+    // Asks the runner to stop after the chunk it is running, if any. Use
+    // await to wait for it.
+    public void stop ()
+    {
+        stopRequested = true;
+        if ( state.compareAndSet(PARKED, QUEUED) )
+        {
+            submit();
+        }
+    }
+
+    // Resumes a parked CPU. Can be called from any thread, any time, a wake
+    // while the CPU is running makes it run at least one more chunk.
+    public void wake ()
+    {
+        woken.set(true);
+        if ( state.compareAndSet(PARKED, QUEUED) )
+        {
+            submit();
+        }
+    }
+
+    // Waits until the runner stopped, because of stop() or a fault.
+    public synchronized void await () throws InterruptedException
+    {
+        while ( state.get() != STOPPED )
+        {
+            wait();
+        }
+    }
+
+    // Returns false if the runner is still running after timeout.
+    public synchronized boolean await (long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while ( state.get() != STOPPED )
+        {
+            long left = deadline - System.nanoTime();
+            if ( left <= 0 )
+            {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    public boolean isRunning ()
+    {
+        return state.get() != STOPPED;
+    }
+
+    public boolean isParked ()
+    {
+        return state.get() == PARKED;
+    }
+
+    // The exception that stopped the CPU, or null.
+    public RuntimeException getFault ()
+    {
+        return fault;
+    }
+
+    private void step ()
+    {
+        state.set(RUNNING);
+        if ( stopRequested )
+        {
+            finish();
+            return;
+        }
+
+        // Anything that woke us before this chunk is seen by it.
+        woken.set(false);
+        try
+        {
+            cpu.cycle(chunkCycles);
+        }
+        catch ( RuntimeException ex )
+        {
+            fault = ex;
+            finish();
+            return;
+        }
+
+        if ( stopRequested )
+        {
+            finish();
+        }
+        else if ( cpu.isIdle() && !cpu.isIdlePollingMemory() )
+        {
+            // wake() and stop() set their flag before looking for PARKED,
+            // so one of the two sides always resubmits.
+            state.set(PARKED);
+            if ( ( woken.get() || stopRequested ) && state.compareAndSet(PARKED, QUEUED) )
+            {
+                submit();
+            }
+        }
+        else
+        {
+            state.set(QUEUED);
+            submit();
+        }
+    }
+
+    private void submit ()
+    {
+        try
+        {
+            executor.execute(step);
+        }
+        catch ( RejectedExecutionException ex )
+        {
+            fault = ex;
+            finish();
+        }
+    }
+
+    private synchronized void finish ()
+    {
+        state.set(STOPPED);
+        notifyAll();
+    }
+}
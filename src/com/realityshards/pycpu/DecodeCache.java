@@ -0,0 +1,133 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pywatcher;
+
+import java.util.Arrays;
+
+// Per CPU cache of decoded instruction words, keyed by address.
+//
+// Each entry packs the decoded fields of one instruction word into an int:
+//
+//  bits  0 -  4 : handler index (the INST_* value)
+//  bits  5 -  8 : source register
+//  bits  9 - 12 : destination register
+//  bits 13 - 15 : jump condition (forced to JUMP_NONE for FNC/FNR)
+//  bit       16 : a SETVAL immediate word follows
+//  bit       17 : instruction always jumps (FNC/FNR)
+//  bit       31 : entry is valid
+//
+// Pages are only allocated for code that is actually executed, so a CPU
+// that lives in a few hundred words of ROM only pays for a couple of pages.
+class DecodeCache implements i_pywatcher
+{
+    static final int PAGE_BITS = 8;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+    static final int PAGE_COUNT = 0x10000 >> PAGE_BITS;
+
+    static final int OP_MASK = 0x1F;
+    static final int SRC_SHIFT = 5;
+    static final int DST_SHIFT = 9;
+    static final int JUMP_SHIFT = 13;
+    static final int REG_MASK = 0xF;
+    static final int JUMP_MASK = 0x7;
+    static final int IMMEDIATE_BIT = 1 << 16;
+    static final int ALWAYS_JUMP_BIT = 1 << 17;
+    static final int VALID_BIT = 1 << 31;
+
+    private final int[][] pages = new int[PAGE_COUNT][];
+
+    // Returns the decoded form of the instruction word at address, decoding
+    // (and caching) the supplied word if this address has not been seen yet.
+    int lookup(char address, char word)
+    {
+        int[] page = pages[address >> PAGE_BITS];
+
+        if ( page == null )
+        {
+            page = new int[PAGE_SIZE];
+            pages[address >> PAGE_BITS] = page;
+        }
+
+        int entry = page[address & PAGE_MASK];
+
+        if ( entry == 0 )
+        {
+            entry = decode(word);
+            page[address & PAGE_MASK] = entry;
+        }
+
+        return entry;
+    }
+
+    void invalidate(int address, int length)
+    {
+        int end = Math.min(address + length, 0x10000);
+
+        for ( int addr = address; addr < end; )
+        {
+            int[] page = pages[addr >> PAGE_BITS];
+            int pageEnd = Math.min((addr | PAGE_MASK) + 1, end);
+
+            if ( page != null )
+            {
+                Arrays.fill(page, addr & PAGE_MASK, ((pageEnd - 1) & PAGE_MASK) + 1, 0);
+            }
+            addr = pageEnd;
+        }
+    }
+
+    void clear()
+    {
+        Arrays.fill(pages, null);
+    }
+
+    @Override
+    public void mem_changed(char address, int length)
+    {
+        invalidate(address, length);
+    }
+
+    static int decode(char word)
+    {
+        // IIIII JJJ SSSS DDDD
+        int inst = (word >> 11) & 0x1F;
+        int source = (word >> 4) & 0xF;
+        int dest = word & 0xF;
+        int jump = (word >> 8) & 0x7;
+        int entry = VALID_BIT;
+
+        if ( inst == PyCPU.INST_SETVAL )
+        {
+            entry |= IMMEDIATE_BIT;
+        }
+        else if ( inst == PyCPU.INST_FNC || inst == PyCPU.INST_FNR )
+        {
+            // Any jump bits tacked on to a call or return are ignored.
+            jump = PyCPU.JUMP_NONE;
+            entry |= ALWAYS_JUMP_BIT;
+        }
+
+        return entry | inst | (source << SRC_SHIFT) | (dest << DST_SHIFT) | (jump << JUMP_SHIFT);
+    }
+
+    static int op(int entry)
+    {
+        return entry & OP_MASK;
+    }
+
+    static byte source(int entry)
+    {
+        return (byte)((entry >> SRC_SHIFT) & REG_MASK);
+    }
+
+    static byte dest(int entry)
+    {
+        return (byte)((entry >> DST_SHIFT) & REG_MASK);
+    }
+
+    static int jump(int entry)
+    {
+        return (entry >> JUMP_SHIFT) & JUMP_MASK;
+    }
+}
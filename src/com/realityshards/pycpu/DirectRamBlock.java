@@ -0,0 +1,114 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pybus;
+import com.realityshards.pycpu.interfaces.i_pydirty;
+import com.realityshards.pycpu.interfaces.i_pymemory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+
+// RAM held off heap in a direct ByteBuffer instead of a char[].
+//
+// Behaves like RamBlock on the bus, but the words don't add to the heap the
+// GC has to scan and copy, which adds up with thousands of CPUs. The cost is
+// that it is not an i_pyarray, so the CPU reaches it through read_mem and
+// write_mem instead of indexing an array.
+//
+// getBuffer() and getCharView() share the memory without copying, for
+// backends that read RAM directly (a display scanning video memory). Words
+// are in native byte order.
+public class DirectRamBlock implements i_pymemory, i_pydirty
+{
+    private static final char[] ZEROS = new char[256];
+
+    private final char BaseAddress;
+    private final int Size;
+    private final ByteBuffer RamBytes;
+    private final CharBuffer RamData;
+    private final DirtyPages Dirty = new DirtyPages();
+
+    public DirectRamBlock (int baseAddress, int size)
+    {
+        BaseAddress = (char)baseAddress;
+        Size = size;
+        RamBytes = ByteBuffer.allocateDirect(Size * 2).order(ByteOrder.nativeOrder());
+        RamData = RamBytes.asCharBuffer();
+    }
+
+    @Override
+    public int getSize ()
+    {
+        return Size;
+    }
+
+    @Override
+    public char getBaseAddress ()
+    {
+        return BaseAddress;
+    }
+
+    @Override
+    public char read_mem (char address)
+    {
+        int val = 0;
+
+        if (address >= BaseAddress & address < (BaseAddress + Size)) {
+            val = address - BaseAddress;
+        }
+        return RamData.get(val);
+    }
+
+    @Override
+    public boolean write_mem (char address, char value)
+    {
+        boolean retVal = false;
+
+        if (address >= BaseAddress & address < (BaseAddress + Size)) {
+            RamData.put(address - BaseAddress, value);
+            Dirty.mark(address);
+            retVal = true;
+        }
+
+        return retVal;
+    }
+
+    @Override
+    public boolean init ()
+    {
+        CharBuffer data = RamData.duplicate();
+
+        data.clear();
+        while ( data.hasRemaining() )
+        {
+            data.put(ZEROS, 0, Math.min(ZEROS.length, data.remaining()));
+        }
+        Dirty.mark(BaseAddress, BaseAddress + Size);
+        return true;
+    }
+
+    @Override
+    public boolean isDirty (int page)
+    {
+        return Dirty.isDirty(page);
+    }
+
+    @Override
+    public void clearDirty ()
+    {
+        Dirty.clear();
+    }
+
+    // The RAM's bytes, word n at byte 2n in native order. The buffer has its
+    // own position and limit, the memory is shared.
+    public ByteBuffer getBuffer ()
+    {
+        return RamBytes.duplicate().order(RamBytes.order());
+    }
+
+    // The RAM's words, word n at index n. The memory is shared.
+    public CharBuffer getCharView ()
+    {
+        return RamData.duplicate();
+    }
+}
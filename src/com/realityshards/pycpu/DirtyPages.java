@@ -0,0 +1,52 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pydirty;
+
+import java.util.Arrays;
+
+// The written pages of an i_pydirty RAM block, one bit for every page of
+// the 64K address space.
+//
+// mark() may be called from several threads at once (SharedRamBlock), it
+// only takes the lock the first time a page is marked. clear() must not
+// race with marking.
+final class DirtyPages
+{
+    static final int PAGE_COUNT = 0x10000 >> i_pydirty.PAGE_BITS;
+
+    // Bit page & 63 of word page >> 6. PyCPU's memory map sets the bits of
+    // the stores it makes straight in to a RamBlock's array itself.
+    final long[] bits = new long[PAGE_COUNT / 64];
+
+    void mark(char address)
+    {
+        int page = address >> i_pydirty.PAGE_BITS;
+
+        if ( ( bits[page >> 6] & (1L << page) ) == 0 )
+        {
+            synchronized ( this )
+            {
+                bits[page >> 6] |= 1L << page;
+            }
+        }
+    }
+
+    // Marks every page with a word in [start, end).
+    synchronized void mark(int start, int end)
+    {
+        for ( int page = start >> i_pydirty.PAGE_BITS; page <= (end - 1) >> i_pydirty.PAGE_BITS && page < PAGE_COUNT; page++ )
+        {
+            bits[page >> 6] |= 1L << page;
+        }
+    }
+
+    boolean isDirty(int page)
+    {
+        return page >= 0 && page < PAGE_COUNT && ( bits[page >> 6] & (1L << page) ) != 0;
+    }
+
+    synchronized void clear()
+    {
+        Arrays.fill(bits, 0);
+    }
+}
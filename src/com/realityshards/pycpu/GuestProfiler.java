@@ -0,0 +1,348 @@
+package com.realityshards.pycpu;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+// Sampling profiler for the program a CPU runs, see PyCPU.setProfiler.
+//
+// Every interval cycles the CPU hands over its PC. Samples are taken at the
+// CPU's poll points (the same ones interrupts use) and before compiled
+// blocks the sample is due in, so nothing is paid per instruction. Cycles
+// skipped in an idle loop, or more than one interval in a compiled block,
+// are counted as that many samples of where the CPU was.
+//
+// The guest call stack is rebuilt from FNC and FNR (and entering and
+// leaving interrupt handlers), each frame is the address called. A stack
+// started part way through a program only holds the calls made since, and
+// a program that returns more often than it called just empties it.
+//
+// writeCollapsed writes the samples as collapsed stacks for flame graph
+// tools, writeReport a table of where the cycles go. Addresses are named
+// with the SymbolTable, if there is one.
+//
+// Not thread safe, read it between ticks or from the CPU's thread.
+public class GuestProfiler
+{
+    // Deeper calls are counted but not kept, samples show the outer frames.
+    public static final int MAX_DEPTH = 64;
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // One distinct stack, the frames outermost first then the PC.
+    private static final class Stack
+    {
+        final char[] addresses;
+        final int hash;
+        long samples;
+
+        Stack(char[] addresses)
+        {
+            this.addresses = addresses;
+            hash = Arrays.hashCode(addresses);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Stack && Arrays.equals(addresses, ((Stack)other).addresses);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    private final int interval;
+    private SymbolTable symbols = null;
+    private long nextSample = 0;                // Cycle count the next sample is due at
+
+    private final char[] frames = new char[MAX_DEPTH];
+    private int depth = 0;
+    private int lostFrames = 0;                 // Calls deeper than MAX_DEPTH
+
+    private final HashMap<Stack, Stack> stacks = new HashMap<Stack, Stack>();
+    private final long[][] pcSamples = new long[0x10000 >> PAGE_BITS][];
+    private long samples = 0;
+
+    public GuestProfiler (int interval)
+    {
+        if ( interval < 1 )
+        {
+            throw new IllegalArgumentException("Bad sampling interval " + interval);
+        }
+        this.interval = interval;
+    }
+
+    public int getInterval ()
+    {
+        return interval;
+    }
+
+    public void setSymbols (SymbolTable symbols)
+    {
+        this.symbols = symbols;
+    }
+
+    public SymbolTable getSymbols ()
+    {
+        return symbols;
+    }
+
+    public long getSampleCount ()
+    {
+        return samples;
+    }
+
+    // Samples taken with the PC at address
+    public long getSamples (int address)
+    {
+        long[] page = pcSamples[(address & 0xFFFF) >> PAGE_BITS];
+
+        return page == null ? 0 : page[address & PAGE_MASK];
+    }
+
+    // Current depth of the rebuilt call stack
+    public int getDepth ()
+    {
+        return depth + lostFrames;
+    }
+
+    // Drops the samples, the call stack is kept.
+    public void clear ()
+    {
+        stacks.clear();
+        Arrays.fill(pcSamples, null);
+        samples = 0;
+    }
+
+    // Hooks called by PyCPU
+
+    // Attached to a CPU at cycle count now
+    void start (long now)
+    {
+        nextSample = now + interval;
+        depth = 0;
+        lostFrames = 0;
+    }
+
+    long nextSample ()
+    {
+        return nextSample;
+    }
+
+    // At cycle count now, which is at or past nextSample.
+    void sample (long now, char pc)
+    {
+        // Intervals that went by in an idle skip all sampled the same PC.
+        long weight = (now - nextSample) / interval + 1;
+        nextSample += weight * interval;
+        samples += weight;
+
+        long[] page = pcSamples[pc >> PAGE_BITS];
+        if ( page == null )
+        {
+            page = new long[PAGE_SIZE];
+            pcSamples[pc >> PAGE_BITS] = page;
+        }
+        page[pc & PAGE_MASK] += weight;
+
+        char[] addresses = Arrays.copyOf(frames, depth + 1);
+        addresses[depth] = pc;
+
+        Stack key = new Stack(addresses);
+        Stack stack = stacks.get(key);
+        if ( stack == null )
+        {
+            stacks.put(key, key);
+            stack = key;
+        }
+        stack.samples += weight;
+    }
+
+    void call (char target)
+    {
+        if ( depth < MAX_DEPTH && lostFrames == 0 )
+        {
+            frames[depth++] = target;
+        }
+        else
+        {
+            lostFrames++;
+        }
+    }
+
+    void ret ()
+    {
+        if ( lostFrames > 0 )
+        {
+            lostFrames--;
+        }
+        else if ( depth > 0 )
+        {
+            depth--;
+        }
+    }
+
+    // Reports
+
+    // One line per distinct stack, "frame;frame;pc samples", the format
+    // flamegraph.pl and most flame graph viewers read. Frames are named
+    // after the functions called, the PC after the code it is in with its
+    // offset. root, if not null, is put in front of every stack, to tell
+    // CPUs apart in one file.
+    public void writeCollapsed (PrintStream out, String root)
+    {
+        for ( Stack stack : sortedStacks() )
+        {
+            StringBuilder line = new StringBuilder();
+            char[] addresses = stack.addresses;
+
+            if ( root != null )
+            {
+                line.append(root).append(';');
+            }
+            for ( int i = 0; i < addresses.length - 1; i++ )
+            {
+                line.append(name(addresses[i])).append(';');
+            }
+            line.append(describe(addresses[addresses.length - 1]));
+            out.println(line.append(' ').append(stack.samples));
+        }
+    }
+
+    // Where the cycles go: per function the share of samples spent in it
+    // (self) and in it or anything it called (total), then the hottest
+    // addresses. A function is the innermost frame, or with symbols the
+    // symbol the PC is in. At most limit rows per table.
+    public void writeReport (PrintStream out, int limit)
+    {
+        HashMap<String, long[]> functions = new HashMap<String, long[]>();  // self, total
+        HashSet<String> seen = new HashSet<String>();
+
+        for ( Stack stack : stacks.values() )
+        {
+            char[] addresses = stack.addresses;
+            int last = addresses.length - 1;
+            String self = symbols != null ? name(addresses[last]) : last > 0 ? name(addresses[last - 1]) : "(top)";
+
+            long[] selfRow = row(functions, self);
+            selfRow[0] += stack.samples;
+            selfRow[1] += stack.samples;
+
+            // Recursive calls count once towards a function's total.
+            seen.clear();
+            seen.add(self);
+            for ( int i = 0; i < last; i++ )
+            {
+                String name = name(addresses[i]);
+                if ( seen.add(name) )
+                {
+                    row(functions, name)[1] += stack.samples;
+                }
+            }
+        }
+
+        out.println("# " + samples + " samples, one every " + interval + " cycles");
+        out.println("  self%  total%  function");
+
+        ArrayList<Map.Entry<String, long[]>> rows = new ArrayList<Map.Entry<String, long[]>>(functions.entrySet());
+        Collections.sort(rows, new Comparator<Map.Entry<String, long[]>>()
+        {
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b)
+            {
+                return a.getValue()[0] != b.getValue()[0] ? Long.compare(b.getValue()[0], a.getValue()[0]) :
+                        Long.compare(b.getValue()[1], a.getValue()[1]);
+            }
+        });
+        for ( int i = 0; i < rows.size() && i < limit; i++ )
+        {
+            long[] counts = rows.get(i).getValue();
+            out.println(String.format("%7s %7s  %s", percent(counts[0]), percent(counts[1]), rows.get(i).getKey()));
+        }
+
+        out.println("  samples%  address");
+
+        ArrayList<long[]> addresses = new ArrayList<long[]>();          // address, samples
+        for ( int page = 0; page < pcSamples.length; page++ )
+        {
+            if ( pcSamples[page] == null )
+            {
+                continue;
+            }
+            for ( int i = 0; i < PAGE_SIZE; i++ )
+            {
+                if ( pcSamples[page][i] != 0 )
+                {
+                    addresses.add(new long[] { (page << PAGE_BITS) | i, pcSamples[page][i] });
+                }
+            }
+        }
+        Collections.sort(addresses, new Comparator<long[]>()
+        {
+            @Override
+            public int compare(long[] a, long[] b)
+            {
+                return Long.compare(b[1], a[1]);
+            }
+        });
+        for ( int i = 0; i < addresses.size() && i < limit; i++ )
+        {
+            int address = (int)addresses.get(i)[0];
+            out.println(String.format("%9s  %s  %s", percent(addresses.get(i)[1]), SymbolTable.hex(address),
+                    symbols != null ? symbols.describe(address) : ""));
+        }
+    }
+
+    private static long[] row (HashMap<String, long[]> rows, String name)
+    {
+        long[] row = rows.get(name);
+
+        if ( row == null )
+        {
+            row = new long[2];
+            rows.put(name, row);
+        }
+        return row;
+    }
+
+    private ArrayList<Stack> sortedStacks ()
+    {
+        ArrayList<Stack> sorted = new ArrayList<Stack>(stacks.values());
+
+        Collections.sort(sorted, new Comparator<Stack>()
+        {
+            @Override
+            public int compare(Stack a, Stack b)
+            {
+                return Long.compare(b.samples, a.samples);
+            }
+        });
+        return sorted;
+    }
+
+    private String name (int address)
+    {
+        return symbols != null ? symbols.name(address) : SymbolTable.hex(address);
+    }
+
+    private String describe (int address)
+    {
+        return symbols != null ? symbols.describe(address) : SymbolTable.hex(address);
+    }
+
+    private String percent (long count)
+    {
+        return String.format("%.1f", samples == 0 ? 0.0 : count * 100.0 / samples);
+    }
+}
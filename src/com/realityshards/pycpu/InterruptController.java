@@ -0,0 +1,249 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pypollable;
+import com.realityshards.pycpu.interfaces.i_pystate;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Interrupt controller peripheral, 16 interrupt lines.
+//
+// Devices raise lines with raise(), from any thread. The CPU looks at the
+// pending lines once every INTERRUPT_POLL_INTERVAL instructions (once per
+// compiled block), not on every instruction. When an enabled line is
+// pending and no interrupt is being serviced, the CPU saves all of its
+// registers here, writes the same stack frame FNC does with the
+// interrupted instruction as the return address, and continues at the
+// line's vector. The lowest pending line goes first.
+//
+// The handler returns with FNR. Calls made with FNC inside the handler are
+// counted, so the FNR that matches the interrupt is the one that returns:
+// it restores every register of the interrupted program, which carries on
+// as if nothing happened. The handler talks to it through memory.
+//
+// A program waiting for an interrupt in a loop that touches nothing counts
+// as idle, setListener lets a raise wake a parked CpuRunner.
+//
+// Registers, as word offsets from the base address:
+//   0 PENDING  Pending lines, writing 1 bits clears those lines
+//   1 ENABLE   Lines that may interrupt
+//   2 RAISE    Writing 1 bits raises those lines, reads 0
+//   3 ACTIVE   Line being serviced plus one, 0 for none, read only
+//   4 VECTOR   Handler address of line 0, line n is at 4 + n
+public class InterruptController implements i_pypollable, i_pystate
+{
+    public static final int LINES = 16;
+
+    public static final int REG_PENDING = 0;
+    public static final int REG_ENABLE = 1;
+    public static final int REG_RAISE = 2;
+    public static final int REG_ACTIVE = 3;
+    public static final int REG_VECTOR = 4;
+    public static final int SIZE = REG_VECTOR + LINES;
+
+    private final char baseAddress;
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Runnable listener = null;
+
+    // CPU thread only
+    private int enabled = 0;
+    private final char[] vectors = new char[LINES];
+    private int active = -1;            // Line being serviced, -1 for none
+
+    // Interrupted program, see PyCPU.pollInterrupts
+    final char[] savedRegs = new char[16];
+    int callDepth = 0;                  // FNC calls made by the handler not returned from yet
+
+    public InterruptController (int baseAddress)
+    {
+        this.baseAddress = (char)baseAddress;
+    }
+
+    // Raises line, any thread.
+    public void raise (int line)
+    {
+        if ( line < 0 || line >= LINES )
+        {
+            throw new IllegalArgumentException("No interrupt line " + line);
+        }
+        pending.getAndUpdate(lines -> lines | (1 << line));
+
+        Runnable wake = listener;
+        if ( wake != null )
+        {
+            wake.run();
+        }
+    }
+
+    // Called after each raise(), typically CpuRunner.wake.
+    public void setListener (Runnable listener)
+    {
+        this.listener = listener;
+    }
+
+    public int getPending ()
+    {
+        return pending.get();
+    }
+
+    @Override
+    public int getSize ()
+    {
+        return SIZE;
+    }
+
+    @Override
+    public char getBaseAddress ()
+    {
+        return baseAddress;
+    }
+
+    @Override
+    public char read_mem (char address)
+    {
+        int offset = address - baseAddress;
+
+        switch ( offset )
+        {
+            case REG_PENDING:
+                return (char)pending.get();
+            case REG_ENABLE:
+                return (char)enabled;
+            case REG_ACTIVE:
+                return (char)(active + 1);
+            default:
+                if ( offset >= REG_VECTOR && offset < SIZE )
+                {
+                    return vectors[offset - REG_VECTOR];
+                }
+                return 0;
+        }
+    }
+
+    @Override
+    public boolean write_mem (char address, char value)
+    {
+        int offset = address - baseAddress;
+
+        switch ( offset )
+        {
+            case REG_PENDING:
+                pending.getAndUpdate(lines -> lines & ~value);
+                return true;
+            case REG_ENABLE:
+                enabled = value;
+                return true;
+            case REG_RAISE:
+                pending.getAndUpdate(lines -> lines | value);
+                return true;
+            case REG_ACTIVE:
+                return true;
+            default:
+                if ( offset >= REG_VECTOR && offset < SIZE )
+                {
+                    vectors[offset - REG_VECTOR] = value;
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    // Drops everything, pending lines included. PyCPU calls this on init
+    // and reset.
+    @Override
+    public boolean init ()
+    {
+        pending.set(0);
+        enabled = 0;
+        Arrays.fill(vectors, (char)0);
+        active = -1;
+        callDepth = 0;
+        return true;
+    }
+
+    // True if taking an interrupt would succeed.
+    boolean isRequesting ()
+    {
+        return active < 0 && ( pending.get() & enabled ) != 0;
+    }
+
+    boolean isActive ()
+    {
+        return active >= 0;
+    }
+
+    // Starts servicing the lowest enabled pending line and returns it, or
+    // -1 if there is none or an interrupt is being serviced already.
+    int take ()
+    {
+        if ( active >= 0 )
+        {
+            return -1;
+        }
+
+        int ready = pending.get() & enabled;
+        if ( ready == 0 )
+        {
+            return -1;
+        }
+
+        int line = Integer.numberOfTrailingZeros(ready);
+        pending.getAndUpdate(lines -> lines & ~(1 << line));
+        active = line;
+        callDepth = 0;
+        return line;
+    }
+
+    char vector (int line)
+    {
+        return vectors[line];
+    }
+
+    void end ()
+    {
+        active = -1;
+    }
+
+    @Override
+    public int state_size ()
+    {
+        return 4 + 4 + 4 + 4 + 1 + (LINES + savedRegs.length) * 2;
+    }
+
+    @Override
+    public void save_state (ByteBuffer out)
+    {
+        out.putInt(pending.get());
+        out.putInt(enabled);
+        out.putInt(active);
+        out.putInt(callDepth);
+        out.put((byte)0);                // Was a return in progress, the CPU finishes those at once now
+        for ( char vector : vectors )
+        {
+            out.putChar(vector);
+        }
+        for ( char reg : savedRegs )
+        {
+            out.putChar(reg);
+        }
+    }
+
+    @Override
+    public void load_state (ByteBuffer in)
+    {
+        pending.set(in.getInt());
+        enabled = in.getInt();
+        active = in.getInt();
+        callDepth = in.getInt();
+        in.get();
+        for ( int i = 0; i < LINES; i++ )
+        {
+            vectors[i] = in.getChar();
+        }
+        for ( int i = 0; i < savedRegs.length; i++ )
+        {
+            savedRegs[i] = in.getChar();
+        }
+    }
+}
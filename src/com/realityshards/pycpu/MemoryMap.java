@@ -0,0 +1,239 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pyarray;
+import com.realityshards.pycpu.interfaces.i_pybus;
+import com.realityshards.pycpu.interfaces.i_pydirty;
+import com.realityshards.pycpu.interfaces.i_pymemory;
+import com.realityshards.pycpu.interfaces.i_pypollable;
+
+import java.util.Arrays;
+
+// 64K address space split in fixed size pages.
+//
+// A page that is completely covered by a RamBlock points straight at its
+// char array, so a load or store is one shift and one array index. Other
+// array backed devices may hold a ROM image shared with other CPUs or
+// copied on write (OsROM, UserRom), stores to them always go through
+// write_mem. A map made with readArrays indexes their arrays for loads
+// too, see the constructor. A page covered by any other device calls the
+// device's read_mem/write_mem. A page shared by small devices (peripherals
+// are often only a few words) gets a table with the device of every word
+// in it, so finding the device is still two array loads.
+// Reads of unmapped addresses return UNMAPPED and writes return false, the
+// CPU turns those in to FLAG_ERROR_BIT.
+class MemoryMap
+{
+    static final int PAGE_BITS = i_pydirty.PAGE_BITS;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+    static final int PAGE_COUNT = 0x10000 >> PAGE_BITS;
+
+    static final int UNMAPPED = -1;
+
+    private final boolean readArrays;   // Load from any i_pyarray's array, not only a RamBlock's
+
+    // Direct pages, the word at address is pageData[page][pageOffset[page] + address]
+    private final char[][] pageData = new char[PAGE_COUNT][];
+    private final int[] pageOffset = new int[PAGE_COUNT];
+
+    // pageData of the direct pages that may be stored to, null for the rest
+    private final char[][] pageWriteData = new char[PAGE_COUNT][];
+
+    // Dirty page bits of the RamBlock of each pageWriteData page. A store
+    // straight in to the array sets the page's bit, like write_mem would.
+    private final long[][] pageDirty = new long[PAGE_COUNT][];
+
+    // Device covering the whole page
+    private final i_pybus[] pageDevice = new i_pybus[PAGE_COUNT];
+
+    // Device of each word of a partly covered page, null for whole pages.
+    private final i_pybus[][] pageWords = new i_pybus[PAGE_COUNT][];
+
+    // Pages with a device whose reads may have side effects, see i_pypollable.
+    private final boolean[] pageReadEffects = new boolean[PAGE_COUNT];
+
+    // Pages with RAM, array backed or i_pymemory, which can change under the CPU.
+    private final boolean[] pageMemory = new boolean[PAGE_COUNT];
+
+    // With readArrays every array backed device gets direct pages for
+    // loads. ROMs replace their array when they load an image and a
+    // UserRom when it is first written, the owner of the map has to map
+    // them again when they do, like PyCPU does for its code map.
+    MemoryMap(boolean readArrays)
+    {
+        this.readArrays = readArrays;
+    }
+
+    // Maps the part of device that falls in [windowStart, windowEnd).
+    // Returns false if nothing of the device is inside the window. Devices
+    // must not overlap, check with isMapped first.
+    boolean map(i_pybus device, int windowStart, int windowEnd)
+    {
+        if ( device == null )
+        {
+            return false;
+        }
+
+        int start = Math.max(device.getBaseAddress(), windowStart);
+        int end = Math.min(device.getBaseAddress() + device.getSize(), Math.min(windowEnd, 0x10000));
+
+        if ( start >= end )
+        {
+            return false;
+        }
+
+        boolean array = device instanceof i_pyarray;
+        char[] data = null;
+        if ( device instanceof RamBlock || ( readArrays && array ) )
+        {
+            data = ((i_pyarray)device).getData();
+        }
+        char[] writeData = device instanceof RamBlock ? data : null;
+        long[] dirty = device instanceof RamBlock ? ((RamBlock)device).Dirty.bits : null;
+        boolean readEffects = !array && !( device instanceof i_pypollable );
+        boolean memory = array || device instanceof i_pymemory;
+
+        for ( int page = start >> PAGE_BITS; page <= (end - 1) >> PAGE_BITS; page++ )
+        {
+            int first = Math.max(start, page << PAGE_BITS);
+            int last = Math.min(end, (page + 1) << PAGE_BITS);
+
+            if ( last - first == PAGE_SIZE )
+            {
+                pageDevice[page] = device;
+                pageWords[page] = null;
+                pageData[page] = data;
+                pageWriteData[page] = writeData;
+                pageDirty[page] = dirty;
+                pageOffset[page] = -device.getBaseAddress();
+                pageReadEffects[page] = readEffects;
+                pageMemory[page] = memory;
+            }
+            else
+            {
+                if ( pageWords[page] == null )
+                {
+                    pageWords[page] = new i_pybus[PAGE_SIZE];
+                }
+                Arrays.fill(pageWords[page], first & PAGE_MASK, ((last - 1) & PAGE_MASK) + 1, device);
+                pageDevice[page] = null;
+                pageData[page] = null;
+                pageWriteData[page] = null;
+                pageDirty[page] = null;
+                pageReadEffects[page] |= readEffects;
+                pageMemory[page] |= memory;
+            }
+        }
+
+        return true;
+    }
+
+    void clear()
+    {
+        Arrays.fill(pageData, null);
+        Arrays.fill(pageWriteData, null);
+        Arrays.fill(pageDirty, null);
+        Arrays.fill(pageDevice, null);
+        Arrays.fill(pageWords, null);
+        Arrays.fill(pageReadEffects, false);
+        Arrays.fill(pageMemory, false);
+    }
+
+    // False if reading address can't change anything, true if it may.
+    // Tracked per page, a page shared with a device that may is true for
+    // all of its addresses.
+    boolean hasReadEffects(char address)
+    {
+        return pageReadEffects[address >> PAGE_BITS];
+    }
+
+    // True if address may be plain memory, array backed or i_pymemory.
+    // Reading it has no effects, but it can change without a write through
+    // this bus. Tracked per page like hasReadEffects.
+    boolean isMemory(char address)
+    {
+        return pageMemory[address >> PAGE_BITS];
+    }
+
+    int read(char address)
+    {
+        int page = address >> PAGE_BITS;
+        char[] data = pageData[page];
+
+        if ( data != null )
+        {
+            return data[pageOffset[page] + address];
+        }
+        return readDevice(address, page);
+    }
+
+    boolean write(char address, char value)
+    {
+        int page = address >> PAGE_BITS;
+        char[] data = pageWriteData[page];
+
+        if ( data != null )
+        {
+            data[pageOffset[page] + address] = value;
+            pageDirty[page][page >> 6] |= 1L << page;
+            return true;
+        }
+        return writeDevice(address, value, page);
+    }
+
+    boolean isMapped(char address)
+    {
+        return device(address, address >> PAGE_BITS) != null;
+    }
+
+    // True if any address in [start, end) is mapped.
+    boolean isMapped(int start, int end)
+    {
+        for ( int address = start; address < end; address++ )
+        {
+            if ( isMapped((char)address) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private i_pybus device(char address, int page)
+    {
+        i_pybus device = pageDevice[page];
+
+        if ( device == null )
+        {
+            i_pybus[] words = pageWords[page];
+
+            if ( words != null )
+            {
+                device = words[address & PAGE_MASK];
+            }
+        }
+        return device;
+    }
+
+    private int readDevice(char address, int page)
+    {
+        i_pybus device = device(address, page);
+
+        if ( device != null )
+        {
+            return device.read_mem(address);
+        }
+        return UNMAPPED;
+    }
+
+    private boolean writeDevice(char address, char value, int page)
+    {
+        i_pybus device = device(address, page);
+
+        if ( device != null )
+        {
+            return device.write_mem(address, value);
+        }
+        return false;
+    }
+}
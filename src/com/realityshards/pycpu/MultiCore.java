@@ -0,0 +1,190 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pybus;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Several PyCPU cores sharing one OS ROM, one SharedRamBlock and the same
+// peripherals, each core running on its own worker thread.
+//
+// A UserRom can't be shared, a write to it updates the decoded and
+// compiled code of every CPU watching it on the writer's thread. Every
+// core gets its own view() of it instead, they share the image until a
+// core's User ROM is written, and that write is only seen by that core.
+// Something writing the User ROM, a peripheral or the host, has to write
+// getUserRom(n) of the core it is meant for, and only while the core isn't
+// running or from the core's own thread.
+//
+// Every core also gets a port of an AtomicUnit, which tells it its number
+// and does compare and swap, swap (test-and-set) and add on shared RAM.
+// The RAM ordering rules are in SharedRamBlock: a core sees its own loads
+// and stores in program order, and a core that sees another core's store
+// also sees everything that core stored before it.
+//
+// The shared peripherals are called from all worker threads and must be
+// thread safe, an InterruptController can't be shared (it holds the
+// registers of the core it interrupted). Give each core its own with
+// getCore(n).addPeripheral.
+//
+// A core polling shared RAM for a store of another core may be found idle
+// and skip the rest of its cycle() budget, it sees the store in the next
+// cycle() call.
+public class MultiCore
+{
+    private final PyCPU[] cores;
+    private final i_pybus[] userRoms;
+    private final SharedRamBlock ram;
+    private final RuntimeException[] faults;
+    private final ExecutorService workers;
+
+    public MultiCore (int coreCount, i_pybus uRom, i_pybus mRom, SharedRamBlock ram, i_pybus[] periphs, int atomicBaseAddress)
+    {
+        if ( coreCount <= 0 )
+        {
+            throw new IllegalArgumentException("coreCount must be positive");
+        }
+
+        this.ram = ram;
+        cores = new PyCPU[coreCount];
+        userRoms = new i_pybus[coreCount];
+        faults = new RuntimeException[coreCount];
+
+        AtomicUnit atomics = new AtomicUnit(ram, atomicBaseAddress, coreCount);
+        int shared = periphs == null ? 0 : periphs.length;
+
+        for ( int i = 0; i < shared; i++ )
+        {
+            if ( periphs[i] instanceof InterruptController )
+            {
+                throw new IllegalArgumentException("Peripheral " + i + " is an InterruptController, which can't be shared");
+            }
+        }
+
+        for ( int core = 0; core < coreCount; core++ )
+        {
+            i_pybus[] corePeriphs = new i_pybus[shared + 1];
+
+            if ( shared > 0 )
+            {
+                System.arraycopy(periphs, 0, corePeriphs, 0, shared);
+            }
+            corePeriphs[shared] = atomics.port(core);
+            if ( core > 0 && uRom instanceof UserRom )
+            {
+                userRoms[core] = ((UserRom)uRom).view();
+            }
+            else
+            {
+                userRoms[core] = uRom;
+            }
+            cores[core] = new PyCPU(userRoms[core], mRom, ram, corePeriphs);
+        }
+
+        workers = Executors.newFixedThreadPool(coreCount, task -> {
+            Thread thread = new Thread(task, "pycpu-core");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getCoreCount ()
+    {
+        return cores.length;
+    }
+
+    public PyCPU getCore (int core)
+    {
+        return cores[core];
+    }
+
+    // The User ROM core runs, the one given to the constructor for core 0.
+    public i_pybus getUserRom (int core)
+    {
+        return userRoms[core];
+    }
+
+    public SharedRamBlock getRam ()
+    {
+        return ram;
+    }
+
+    // Inits the ROMs and RAM once, then every core. Returns false if any
+    // part failed.
+    public synchronized boolean init ()
+    {
+        boolean retVal = cores[0].init();
+
+        for ( int core = 1; core < cores.length; core++ )
+        {
+            // The views load the image core 0's User ROM loaded, from the
+            // registry.
+            if ( userRoms[core] != userRoms[0] )
+            {
+                userRoms[core].init();
+            }
+            retVal &= cores[core].initCore();
+        }
+        return retVal;
+    }
+
+    // Runs every core for count cycles, all at the same time, and returns
+    // once all of them are done.
+    public synchronized void cycle (int count)
+    {
+        ArrayList<Future<?>> running = new ArrayList<Future<?>>(cores.length);
+
+        for ( int core = 0; core < cores.length; core++ )
+        {
+            final int index = core;
+
+            faults[index] = null;
+            running.add(workers.submit(() -> runCore(index, count)));
+        }
+
+        for ( Future<?> future : running )
+        {
+            try
+            {
+                future.get();
+            }
+            catch ( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for the cores", ex);
+            }
+            catch ( ExecutionException ex )
+            {
+                // runCore catches everything the CPU throws
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+    }
+
+    // The exception the core threw in the last cycle() call, or null.
+    public synchronized RuntimeException getFault (int core)
+    {
+        return faults[core];
+    }
+
+    public void shutdown ()
+    {
+        workers.shutdown();
+    }
+
+    private void runCore (int core, int count)
+    {
+        try
+        {
+            cores[core].cycle(count);
+        }
+        catch ( RuntimeException ex )
+        {
+            // One core faulting must not stop the others.
+            faults[core] = ex;
+        }
+    }
+}
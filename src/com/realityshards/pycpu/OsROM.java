@@ -1,29 +1,33 @@
 package com.realityshards.pycpu;
 
+import com.realityshards.pycpu.interfaces.i_pyarray;
 import com.realityshards.pycpu.interfaces.i_pybus;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
 
-public class OsROM implements i_pybus {
+public class OsROM implements i_pyarray {
 
     private char RomBaseAddress = 0;
     private static final char RomSize = 0x2000;
-    private char[] RomData;
+    private char[] RomData;         // Shared with other ROMs holding the same image, never written
+    private RomImage Image;
     private String RomFile;
+    private final RomImageRegistry Registry;
 
-    public OsROM (int romBaseAddress, String romFileName) {
+    public OsROM (int romBaseAddress, String romFileName, RomImageRegistry registry) {
         RomBaseAddress = (char)romBaseAddress;
-        RomData = new char[RomSize];
         RomFile = romFileName;
+        Registry = registry;
+        Image = Registry.blank(RomSize);
+        RomData = Image.words;
+    }
+
+    public OsROM (int romBaseAddress, String romFileName) {
+        this(romBaseAddress, romFileName, RomImageRegistry.shared());
     }
 
     public OsROM (char romBaseAddress ) {
-        RomBaseAddress = romBaseAddress;
-        RomData = new char[RomSize];
-        RomFile = "osrom.dat";
+        this(romBaseAddress, "osrom.dat");
     }
     @Override
     public int getSize ()
@@ -36,11 +40,21 @@ public class OsROM implements i_pybus {
         return RomBaseAddress;
     }
 
+    // The array may be shared with other ROMs, it must not be written.
+    @Override
+    public char[] getData() {
+        return RomData;
+    }
+
+    public RomImage getImage() {
+        return Image;
+    }
+
     @Override
     public char read_mem(char address) {
         int val = 0;
 
-        if ( (RomBaseAddress + address) < (RomBaseAddress + RomSize ) )
+        if ( address >= RomBaseAddress & address < (RomBaseAddress + RomSize) )
         {
             val = address - RomBaseAddress;
         }
@@ -54,49 +68,15 @@ public class OsROM implements i_pybus {
 
     @Override
     public boolean init() {
+        // Fails if the image is missing, truncated or bigger than the ROM
+        RomImage image = Registry.load(new File(RomFile), RomSize);
 
-        String curDir = System.getProperty("user.dir");
-        System.out.println("The current working directory is: " + curDir);
-        try
+        if ( image == null )
         {
-            // create reader
-            FileInputStream fis = new FileInputStream(new File(RomFile));
-            BufferedInputStream reader = new BufferedInputStream(fis);
-
-            // read a byte at a time
-            int ch, offset = 0;
-            byte[] buff = new byte[2];
-
-            System.out.printf("Number of bytes available: %d\n", reader.available());
-
-            while((ch = reader.read(buff, 0, 2)) != -1)
-            {
-                if ( ch != 2 )
-                {
-                    // if we read less than 2 bytes than the dat file is corrupted.
-                    break;
-                }
-                char v1 = (char) (0x00FF & buff[1]);
-                char v2 = (char) (0x00FF & buff[0]);
-                char rval = (char) (( v1 << 8 ) | v2);
-                RomData[offset] = rval;
-                offset++;
-                if ( offset > RomSize)
-                {
-                    break;
-                }
-            }
-
-            reader.close();
-        }
-        catch ( IOException ex )
-        {
-            System.out.print(ex.getMessage());
-            ex.printStackTrace();
+            return false;
         }
+        Image = image;
+        RomData = image.words;
         return true;
     }
-
-
-
 }
@@ -0,0 +1,296 @@
+package com.realityshards.pycpu;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+// Execution counters of one CPU, see PyCPU.setPerfCountersEnabled.
+//
+// The counters are plain fields bumped by the thread running the CPU, so
+// counting doesn't allocate or synchronize. Other threads (JMX, a stats
+// command) may see values a few instructions stale, use snapshot() for a
+// consistent copy taken from the CPU's own thread.
+public class PerfCounters implements PerfCountersMXBean
+{
+    public static final String MBEAN_DOMAIN = "com.realityshards.pycpu";
+
+    private long cycles;
+    private final long[] opcodeCycles = new long[32];
+    private final long[] jumpsTaken = new long[8];
+    private final long[] jumpsNotTaken = new long[8];
+    private long calls;
+    private long returns;
+    private int callDepth;
+    private int maxCallDepth;
+    private long memoryErrors;
+    private long idleCycles;
+
+    // Immutable copy of the counters.
+    public static final class Snapshot
+    {
+        private final long cycles;
+        private final long[] opcodeCycles;
+        private final long[] jumpsTaken;
+        private final long[] jumpsNotTaken;
+        private final long calls;
+        private final long returns;
+        private final int callDepth;
+        private final int maxCallDepth;
+        private final long memoryErrors;
+        private final long idleCycles;
+
+        private Snapshot(PerfCounters counters)
+        {
+            cycles = counters.cycles;
+            opcodeCycles = counters.opcodeCycles.clone();
+            jumpsTaken = counters.jumpsTaken.clone();
+            jumpsNotTaken = counters.jumpsNotTaken.clone();
+            calls = counters.calls;
+            returns = counters.returns;
+            callDepth = counters.callDepth;
+            maxCallDepth = counters.maxCallDepth;
+            memoryErrors = counters.memoryErrors;
+            idleCycles = counters.idleCycles;
+        }
+
+        public long getCycles()
+        {
+            return cycles;
+        }
+
+        public long getOpcodeCycles(int inst)
+        {
+            return opcodeCycles[inst];
+        }
+
+        public long getJumpsTaken(int jump)
+        {
+            return jumpsTaken[jump];
+        }
+
+        public long getJumpsNotTaken(int jump)
+        {
+            return jumpsNotTaken[jump];
+        }
+
+        public long getCalls()
+        {
+            return calls;
+        }
+
+        public long getReturns()
+        {
+            return returns;
+        }
+
+        public int getCallDepth()
+        {
+            return callDepth;
+        }
+
+        public int getMaxCallDepth()
+        {
+            return maxCallDepth;
+        }
+
+        public long getMemoryErrors()
+        {
+            return memoryErrors;
+        }
+
+        public long getIdleCycles()
+        {
+            return idleCycles;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "perf{" +
+                    "cycles=" + cycles +
+                    ", opcodeCycles=" + Arrays.toString(opcodeCycles) +
+                    ", jumpsTaken=" + Arrays.toString(jumpsTaken) +
+                    ", jumpsNotTaken=" + Arrays.toString(jumpsNotTaken) +
+                    ", calls=" + calls +
+                    ", returns=" + returns +
+                    ", callDepth=" + callDepth +
+                    ", maxCallDepth=" + maxCallDepth +
+                    ", memoryErrors=" + memoryErrors +
+                    ", idleCycles=" + idleCycles +
+                    '}';
+        }
+    }
+
+    public Snapshot snapshot()
+    {
+        return new Snapshot(this);
+    }
+
+    // Registers the counters with the platform MBean server as
+    // com.realityshards.pycpu:type=PerfCounters,name=<name>.
+    public ObjectName registerMBean(String name) throws JMException
+    {
+        ObjectName objectName = mbeanName(name);
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public static void unregisterMBean(String name) throws JMException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = mbeanName(name);
+
+        if ( server.isRegistered(objectName) )
+        {
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    private static ObjectName mbeanName(String name) throws JMException
+    {
+        return new ObjectName(MBEAN_DOMAIN + ":type=PerfCounters,name=" + ObjectName.quote(name));
+    }
+
+    // Hooks called by PyCPU
+
+    void instruction(int inst)
+    {
+        cycles++;
+        opcodeCycles[inst]++;
+    }
+
+    // The first length instructions of a compiled block, ops holds the
+    // INST_* of each of its instructions.
+    void block(byte[] ops, int length)
+    {
+        cycles += length;
+        for ( int i = 0; i < length; i++ )
+        {
+            opcodeCycles[ops[i]]++;
+        }
+    }
+
+    void jump(int jump, boolean taken)
+    {
+        if ( taken )
+        {
+            jumpsTaken[jump]++;
+        }
+        else
+        {
+            jumpsNotTaken[jump]++;
+        }
+    }
+
+    void call()
+    {
+        calls++;
+        if ( ++callDepth > maxCallDepth )
+        {
+            maxCallDepth = callDepth;
+        }
+    }
+
+    void ret()
+    {
+        returns++;
+        // Programs can return more often than they called, don't go negative.
+        if ( callDepth > 0 )
+        {
+            callDepth--;
+        }
+    }
+
+    void memoryError()
+    {
+        memoryErrors++;
+    }
+
+    // Cycles skipped in an idle loop, they are not in cycles.
+    void idle(int skipped)
+    {
+        idleCycles += skipped;
+    }
+
+    // PerfCountersMXBean
+
+    @Override
+    public long getCycles()
+    {
+        return cycles;
+    }
+
+    @Override
+    public long[] getOpcodeCycles()
+    {
+        return opcodeCycles.clone();
+    }
+
+    @Override
+    public long[] getJumpsTaken()
+    {
+        return jumpsTaken.clone();
+    }
+
+    @Override
+    public long[] getJumpsNotTaken()
+    {
+        return jumpsNotTaken.clone();
+    }
+
+    @Override
+    public long getCalls()
+    {
+        return calls;
+    }
+
+    @Override
+    public long getReturns()
+    {
+        return returns;
+    }
+
+    @Override
+    public int getCallDepth()
+    {
+        return callDepth;
+    }
+
+    @Override
+    public int getMaxCallDepth()
+    {
+        return maxCallDepth;
+    }
+
+    @Override
+    public long getMemoryErrors()
+    {
+        return memoryErrors;
+    }
+
+    @Override
+    public long getIdleCycles()
+    {
+        return idleCycles;
+    }
+
+    // Not synchronized with the CPU, a reset during a tick can lose a few
+    // counts of that tick.
+    @Override
+    public void reset()
+    {
+        cycles = 0;
+        Arrays.fill(opcodeCycles, 0);
+        Arrays.fill(jumpsTaken, 0);
+        Arrays.fill(jumpsNotTaken, 0);
+        calls = 0;
+        returns = 0;
+        callDepth = 0;
+        maxCallDepth = 0;
+        memoryErrors = 0;
+        idleCycles = 0;
+    }
+}
@@ -0,0 +1,31 @@
+package com.realityshards.pycpu;
+
+// JMX view of a CPU's PerfCounters, see PerfCounters.registerMBean.
+public interface PerfCountersMXBean
+{
+    long getCycles();
+
+    // Indexed by the INST_* values
+    long[] getOpcodeCycles();
+
+    // Indexed by the JUMP_* values, JUMP_NONE stays 0 as instructions
+    // without a jump aren't counted.
+    long[] getJumpsTaken();
+
+    long[] getJumpsNotTaken();
+
+    long getCalls();
+
+    long getReturns();
+
+    int getCallDepth();
+
+    int getMaxCallDepth();
+
+    long getMemoryErrors();
+
+    // Cycles skipped in idle loops
+    long getIdleCycles();
+
+    void reset();
+}
@@ -1,69 +1,94 @@
 package com.realityshards.pycpu;
 
 
+import com.realityshards.pycpu.interfaces.i_pyarray;
 import com.realityshards.pycpu.interfaces.i_pybus;
+import com.realityshards.pycpu.interfaces.i_pydirty;
+import com.realityshards.pycpu.interfaces.i_pystate;
+import com.realityshards.pycpu.interfaces.i_pywatcher;
 
 import com.realityshards.pycpu.utils;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 
 public class PyCPU
 {
     // Definition of instructions
-    private static final byte INST_COPY = 0x00;
-    private static final byte INST_SET0 = 0x01;
-    private static final byte INST_SET1 = 0x02;
-    private static final byte INST_SETN1 = 0x03;
-    private static final byte INST_UINC = 0x04;
-    private static final byte INST_SINC = 0x05;
-    private static final byte INST_UDEC = 0x06;
-    private static final byte INST_SDEC = 0x07;
-    private static final byte INST_UADD = 0x08;
-    private static final byte INST_SADD = 0x09;
-    private static final byte INST_USUB = 0x0A;
-    private static final byte INST_SSUB = 0x0B;
-    private static final byte INST_UMUL = 0x0C;
-    private static final byte INST_SMUL = 0x0D;
-    private static final byte INST_UDIV = 0x0E;
-    private static final byte INST_SDIV = 0x0F;
-    private static final byte INST_AND = 0x10;
-    private static final byte INST_OR = 0x11;
-    private static final byte INST_NOT = 0x12;
-    private static final byte INST_NEG = 0x13;
-    private static final byte INST_BSL = 0x14;
-    private static final byte INST_BSR = 0x15;
-    private static final byte INST_SETVAL = 0x16;
-    private static final byte INST_FNC = 0x17;
-    private static final byte INST_FNR = 0x18;
+    public static final byte INST_COPY = 0x00;
+    public static final byte INST_SET0 = 0x01;
+    public static final byte INST_SET1 = 0x02;
+    public static final byte INST_SETN1 = 0x03;
+    public static final byte INST_UINC = 0x04;
+    public static final byte INST_SINC = 0x05;
+    public static final byte INST_UDEC = 0x06;
+    public static final byte INST_SDEC = 0x07;
+    public static final byte INST_UADD = 0x08;
+    public static final byte INST_SADD = 0x09;
+    public static final byte INST_USUB = 0x0A;
+    public static final byte INST_SSUB = 0x0B;
+    public static final byte INST_UMUL = 0x0C;
+    public static final byte INST_SMUL = 0x0D;
+    public static final byte INST_UDIV = 0x0E;
+    public static final byte INST_SDIV = 0x0F;
+    public static final byte INST_AND = 0x10;
+    public static final byte INST_OR = 0x11;
+    public static final byte INST_NOT = 0x12;
+    public static final byte INST_NEG = 0x13;
+    public static final byte INST_BSL = 0x14;
+    public static final byte INST_BSR = 0x15;
+    public static final byte INST_SETVAL = 0x16;
+    public static final byte INST_FNC = 0x17;
+    public static final byte INST_FNR = 0x18;
 
     // Definition of jumps
-    private static final byte JUMP_NONE = 0x0;
-    private static final byte JUMP_GTZ  = 0x1;
-    private static final byte JUMP_EZ   = 0x2;
-    private static final byte JUMP_GTEZ = 0x3;
-    private static final byte JUMP_LTZ  = 0x4;
-    private static final byte JUMP_NZ   = 0x5;
-    private static final byte JUMP_LTEZ = 0x6;
-    private static final byte JUMP_JUMP = 0x7;
+    public static final byte JUMP_NONE = 0x0;
+    public static final byte JUMP_GTZ  = 0x1;
+    public static final byte JUMP_EZ   = 0x2;
+    public static final byte JUMP_GTEZ = 0x3;
+    public static final byte JUMP_LTZ  = 0x4;
+    public static final byte JUMP_NZ   = 0x5;
+    public static final byte JUMP_LTEZ = 0x6;
+    public static final byte JUMP_JUMP = 0x7;
+
+    // Jump conditions only look at the ZERO and NEGATIVE flags, so whether a
+    // jump is taken is looked up by (jump << 2 | NZ) instead of switching on it.
+    private static final boolean[] JUMP_TAKEN = buildJumpTable();
 
     // Definition of registers
-    private static final byte REG_JUMP_OFFSET = 0x0;
-    private static final byte REG_JUMP = 0x1;
-    private static final byte REG_MEMADD = 0x2;
-    private static final byte REG_MEMDATA = 0x3;
-    private static final byte REG_GP0 = 0x4;
-    private static final byte REG_GP1 = 0x5;
-    private static final byte REG_GP2 = 0x6;
-    private static final byte REG_GP3 = 0x7;
-    private static final byte REG_GP4 = 0x8;
-    private static final byte REG_GP5 = 0x9;
-    private static final byte REG_GP6 = 0xA;
-    private static final byte REG_GP7 = 0xB;
-    private static final byte REG_PC = 0xC;
-    private static final byte REG_STACK = 0xD;
-    private static final byte REG_ALU = 0xE;
-    private static final byte REG_FLAGS = 0xF;
+    public static final byte REG_JUMP_OFFSET = 0x0;
+    public static final byte REG_JUMP = 0x1;
+    public static final byte REG_MEMADD = 0x2;
+    public static final byte REG_MEMDATA = 0x3;
+    public static final byte REG_GP0 = 0x4;
+    public static final byte REG_GP1 = 0x5;
+    public static final byte REG_GP2 = 0x6;
+    public static final byte REG_GP3 = 0x7;
+    public static final byte REG_GP4 = 0x8;
+    public static final byte REG_GP5 = 0x9;
+    public static final byte REG_GP6 = 0xA;
+    public static final byte REG_GP7 = 0xB;
+    public static final byte REG_PC = 0xC;
+    public static final byte REG_STACK = 0xD;
+    public static final byte REG_ALU = 0xE;
+    public static final byte REG_FLAGS = 0xF;
+
+    private static final String[] INST_NAMES = {
+            "COPY", "SET0", "SET1", "SETN1", "UINC", "SINC", "UDEC", "SDEC",
+            "UADD", "SADD", "USUB", "SSUB", "UMUL", "SMUL", "UDIV", "SDIV",
+            "AND", "OR", "NOT", "NEG", "BSL", "BSR", "SETVAL", "FNC", "FNR" };
+    private static final String[] JUMP_NAMES = {
+            "NONE", "GTZ", "EZ", "GTEZ", "LTZ", "NZ", "LTEZ", "JUMP" };
+    private static final String[] REG_NAMES = {
+            "JUMP_OFFSET", "JUMP", "MEMADD", "MEMDATA", "GP0", "GP1", "GP2", "GP3",
+            "GP4", "GP5", "GP6", "GP7", "PC", "STACK", "ALU", "FLAGS" };
+
+    // Registers that can't be accessed with a plain array load or store.
+    static final int REG_WRITE_SLOW_MASK = (1 << REG_MEMADD) | (1 << REG_MEMDATA) |
+            (1 << REG_PC) | (1 << REG_STACK) | (1 << REG_ALU) | (1 << REG_FLAGS);
+    private static final int REG_READ_SLOW_MASK = (1 << REG_FLAGS);
 
     // These flags are set in the flag register on ALU operations
     // These values should be publicly available to make it easier to test for them
@@ -83,88 +108,1098 @@ public class PyCPU
     public static final int CHAR_SIGNED_MAX = 32767;
     public static final int CHAR_SIGNED_MIN = -32768;
 
+    // Address windows the devices are mapped in to.
+    public static final int OS_ROM_START = 0x0000;
+    public static final int OS_ROM_END = 0x1000;
+    public static final int PERIPHERAL_START = 0x2000;
+    public static final int PERIPHERAL_END = 0x4000;
+    public static final int USER_ROM_START = 0x4000;
+    public static final int USER_ROM_END = 0x8000;
+    public static final int RAM_START = 0x8000;
+    public static final int RAM_END = 0x10000;
+
+    // Save state format, see saveState. Bump the version when the layout changes.
+    public static final int STATE_MAGIC = 0x53435950;   // "PYCS" little endian
+    public static final int STATE_VERSION = 1;
+    private static final int STATE_INCREMENTAL = 1;
+    private static final int USER_ROM_FROM_FILE = 0;    // Not modified, reload the image
+    private static final int USER_ROM_INCLUDED = 1;     // Modified, the contents follow
+    private static final int USER_ROM_UNCHANGED = 2;    // Incremental, same as the base state
+
+    // The CPU looks for interrupts once every this many instructions.
+    public static final int INTERRUPT_POLL_INTERVAL = BlockCompiler.MAX_LENGTH;
+
     private final i_pybus userRom;
     private final i_pybus mainRom;
     private final i_pybus ramBlock;
     private final ArrayList<i_pybus> peripherals = new ArrayList<i_pybus>();
 
-    private char RegJump;       // Jump Register (if jump instruction set this is the address to jump to).
-    private char RegJumpOffset; // Jump Offset Register
-    private char RegMemAdd;     // Memory Address Register
-    private char RegMemData;    // Memory Data Register (value to write to or read from memory)
+    // Register file, indexed directly by the 4 bit REG_* value of an operand.
+    // Only the registers in REG_WRITE_SLOW_MASK/REG_READ_SLOW_MASK have side
+    // effects on access, everything else is a plain array load or store.
+    private final char[] Regs = new char[16];
     private char RegInst;       // Instruction Register
-    private char RegPC;         // Program Counter Register
-    private char RegStack;      // Stack Pointer Register
-    private char RegALU;        // ALU Output Register
-    private char RegFlags;      // Flags Register
-    private final char[] RegGp = new char[8];    // 8 General Purpose Registers.
+
+    private final DecodeCache decodeCache = new DecodeCache();
+    private final i_pywatcher codeWatcher = new CodeWatcher();
+    private final MemoryMap codeMap = new MemoryMap(true);     // Instruction fetches, OS ROM and User ROM, see mapCode
+    private final MemoryMap dataMap = new MemoryMap(false);    // MEMADD/MEMDATA accesses, peripherals and RAM
+
+    private long cycleCount = 0;                        // Cycles executed since construction
+    private long idleCycles = 0;                        // Of those, skipped in idle loops
+
+    // The User ROM changed since the last save state, RAM keeps track of
+    // its own pages (i_pydirty).
+    private boolean userRomDirty = false;
+
+    private BlockCache blockCache = null;               // Compiled blocks, null when the JIT is off
+    private int jitThreshold = BlockCache.DEFAULT_THRESHOLD;
+    private int jitCodeLimit = BlockCache.DEFAULT_CODE_LIMIT;
+    private BlockCache.Entry runningBlock = null;       // Block being run, for CodeWatcher
+    private boolean deopt = false;                      // The running block's code was rewritten
+    private int blockRan;                               // Instructions the last runBlock ran
+    private ThreadedCode threadedCode = null;           // Bound handlers, null when the threaded tier is off
+    private TraceRecorder trace = null;                 // Null when tracing is off
+    private PerfCounters perf = null;                   // Null when counting is off
+
+    private InterruptController interrupts = null;      // Null when there is none
+    private GuestProfiler profiler = null;              // Null when not profiling
+    private int pollAt = Integer.MAX_VALUE;             // Cycle of the running cycle() call to poll at
+
+    // Idle loop detection, see checkIdle.
+    private boolean idleDetection = true;
+    private boolean idle = false;                       // The last cycle() skipped an idle loop
+    private boolean sideEffect = false;                 // Memory, stack or FLAGS touched since idleHead
+    private boolean memoryPolled = false;               // RAM read since idleHead, see isIdlePollingMemory
+    private boolean idlePollingMemory = false;          // The skipped idle loop read RAM
+    private int idleHead = -1;                          // Loop head being watched, -1 for none
+    private long idleStart;                             // Cycle count at the loop head
+    private boolean idleSecondTrip = false;             // idleRegs kept for a second trip
+    private final char[] idleRegs = new char[16];       // Registers at the loop head
+    private final BlockOps jitOps = new JitOps();
 
     public PyCPU (i_pybus uRom, i_pybus mRom, i_pybus uRam, i_pybus[] periphs)
     {
         userRom = uRom;
         mainRom = mRom;
         ramBlock = uRam;
+        mapCode();
+        dataMap.map(ramBlock, RAM_START, RAM_END);
         if ( periphs != null )
         {
-            Collections.addAll(peripherals,periphs);
+            for ( int i = 0; i < periphs.length; i++ )
+            {
+                if ( !addPeripheral(periphs[i]) )
+                {
+                    throw new IllegalArgumentException("Peripheral " + i + " is outside the peripheral window or overlaps another one");
+                }
+            }
+        }
+
+        if ( uRom instanceof UserRom )
+        {
+            // Decoded instructions must be dropped when user code is rewritten.
+            ((UserRom)uRom).addWatcher(codeWatcher);
         }
     }
 
 
 
     public boolean init()
+    {
+        // Init RAM and ROMs, then the CPU itself.
+        boolean romOk = mainRom.init();
+
+        if ( userRom != null)
+        {
+            userRom.init();
+        }
+        if ( ramBlock != null)
+        {
+            ramBlock.init();
+        }
+
+        boolean retVal = initCore();
+
+        if ( !romOk )
+        {
+            Regs[REG_FLAGS] |= FLAG_ERROR_BIT;
+            retVal = false;
+        }
+
+        return retVal;
+    }
+
+    // Resets the CPU to its power on state without touching the ROMs and
+    // RAM. For cores sharing them with a CPU that was init()ed, see
+    // MultiCore.
+    public boolean initCore()
     {
         boolean retVal = true;
 
-        RegJump = 0;
-        RegJumpOffset = 0;
-        RegMemAdd = 0;
-        RegMemData = 0;
-        RegInst = 0;
-        RegALU = 0;
-        RegFlags = 0;
-        Arrays.fill(RegGp,(char)0);
+        idleHead = -1;
+        idle = false;
+        Regs[REG_JUMP] = 0;
+        Regs[REG_JUMP_OFFSET] = 0;
+        Regs[REG_MEMADD] = 0;
+        Regs[REG_MEMDATA] = 0;
+        RegInst = 0;
+        Regs[REG_ALU] = 0;
+        Regs[REG_FLAGS] = 0;
+        Arrays.fill(Regs, REG_GP0, REG_GP7 + 1, (char)0);
+
+        if ( interrupts != null )
+        {
+            interrupts.init();
+        }
+
+        // Anything decoded from the old images is stale now.
+        decodeCache.clear();
+        if ( blockCache != null )
+        {
+            blockCache.clear();
+        }
+        if ( threadedCode != null )
+        {
+            threadedCode.clear();
+        }
+        Regs[REG_PC] = mainRom.getBaseAddress();
+
+        if ( userRom == null)
+        {
+            Regs[REG_FLAGS] |= FLAG_ERROR_BIT;
+            retVal = false;
+        }
+
+        // The ROMs may have picked up different (shared) images.
+        mapCode();
+
+        if ( ramBlock != null)
+        {
+            Regs[REG_STACK] = ramBlock.getBaseAddress();
+        }
+        else
+        {
+            Regs[REG_FLAGS] |= FLAG_ERROR_BIT;
+            retVal = false;
+        }
+
+        loadNextInstruction(false);
+
+        return retVal;
+    }
+
+    public void cycle(int count)
+    {
+        int i = 0;
+        boolean entry = true;           // Regs[REG_PC] is where a block would start
+
+        idle = false;
+        pollAt = interrupts != null || profiler != null ? 0 : Integer.MAX_VALUE;
+        try
+        {
+            while ( i < count )
+            {
+                if ( i >= pollAt )
+                {
+                    poll(i);
+                }
+
+                char pc = Regs[REG_PC];
+                boolean incPC;
+
+                // Compiled blocks aren't traced, trace in the interpreter.
+                // Blocks are only looked for where one can start, after a
+                // jump or another block.
+                if ( entry && blockCache != null && trace == null )
+                {
+                    BlockCache.Entry block = blockCache.get(pc);
+
+                    if ( block == null && blockCache.enter(pc) )
+                    {
+                        block = BlockCompiler.compile(codeMap, pc);
+                        if ( block != null && !blockCache.put(block) )
+                        {
+                            // Over the code limit on its own, interpret it.
+                            block = null;
+                        }
+                    }
+
+                    // Blocks that don't fit in what is left of count are interpreted.
+                    if ( block != null && block.length <= count - i )
+                    {
+                        if ( profiler != null && cycleCount + i + block.length > profiler.nextSample() )
+                        {
+                            // The sample is due part way through the block, take
+                            // it at the instruction it lands on.
+                            long now = profiler.nextSample();
+                            profiler.sample(now, block.addressOf((int)(now - cycleCount - i)));
+                        }
+                        incPC = runBlock(block);
+                        loadNextInstruction(incPC);
+                        i += blockRan;
+
+                        if ( !incPC && idleDetection && Regs[REG_PC] < pc + block.span )
+                        {
+                            i = checkIdle(i, count);
+                        }
+                        continue;
+                    }
+                }
+                if ( threadedCode != null && trace == null )
+                {
+                    int start = i;
+
+                    i = runThreaded(i, count);
+                    if ( i > start )
+                    {
+                        entry = true;
+                        continue;
+                    }
+                }
+
+                // Execute is evaluated first, then it's return is
+                // passed to load, which decides if the PC is incremented or not
+                // (aka. if a jump instruction happened or not)
+                incPC = executeInstruction();
+                loadNextInstruction(incPC);
+                i++;
+                entry = !incPC;
+
+                if ( !incPC && idleDetection && Regs[REG_PC] <= pc )
+                {
+                    i = checkIdle(i, count);
+                }
+            }
+        }
+        finally
+        {
+            // Counted even if an instruction threw part way through.
+            cycleCount += i;
+        }
+    }
+
+    // Turns the basic block compiler on or off. The interpreter (or the
+    // threaded tier, when that is on) is always used for anything the
+    // compiled blocks don't cover, including code that isn't hot yet.
+    public void setJitEnabled(boolean enabled)
+    {
+        if ( enabled && blockCache == null )
+        {
+            blockCache = new BlockCache();
+            blockCache.setThreshold(jitThreshold);
+            blockCache.setCodeLimit(jitCodeLimit);
+            if ( userRom instanceof UserRom )
+            {
+                ((UserRom)userRom).addWatcher(blockCache);
+            }
+        }
+        else if ( !enabled && blockCache != null )
+        {
+            if ( userRom instanceof UserRom )
+            {
+                ((UserRom)userRom).removeWatcher(blockCache);
+            }
+            blockCache = null;
+        }
+    }
+
+    // Times a block has to be entered before it is compiled, 1 compiles
+    // every block the first time it runs. See BlockCache.
+    public void setJitThreshold(int entries)
+    {
+        jitThreshold = Math.max(1, Math.min(entries, BlockCache.MAX_THRESHOLD));
+        if ( blockCache != null )
+        {
+            blockCache.setThreshold(jitThreshold);
+        }
+    }
+
+    public int getJitThreshold()
+    {
+        return jitThreshold;
+    }
+
+    // Bytes of class files the compiled blocks may take. When a new block
+    // doesn't fit every block is dropped and compiled again once hot. A
+    // block bigger than the whole limit is left to the interpreter, 0
+    // compiles nothing.
+    public void setJitCodeLimit(int bytes)
+    {
+        jitCodeLimit = bytes;
+        if ( blockCache != null )
+        {
+            blockCache.setCodeLimit(jitCodeLimit);
+        }
+    }
+
+    public int getJitCodeLimit()
+    {
+        return jitCodeLimit;
+    }
+
+    // Bytes of class files the compiled blocks take now, 0 with the JIT off.
+    public int getJitCodeSize()
+    {
+        return blockCache != null ? blockCache.codeSize() : 0;
+    }
+
+    // Turns the threaded code tier on or off. Instructions are run through
+    // handlers bound once per address instead of being decoded and switched
+    // on every time, see ThreadedCode. With the JIT on as well it runs the
+    // code that isn't hot enough to compile.
+    public void setThreadedEnabled(boolean enabled)
+    {
+        if ( enabled && threadedCode == null )
+        {
+            threadedCode = new ThreadedCode();
+            if ( userRom instanceof UserRom )
+            {
+                ((UserRom)userRom).addWatcher(threadedCode);
+            }
+        }
+        else if ( !enabled && threadedCode != null )
+        {
+            if ( userRom instanceof UserRom )
+            {
+                ((UserRom)userRom).removeWatcher(threadedCode);
+            }
+            threadedCode = null;
+        }
+    }
+
+    public boolean isThreadedEnabled()
+    {
+        return threadedCode != null;
+    }
+
+    public long getCycleCount()
+    {
+        return cycleCount;
+    }
+
+    // Cycles of getCycleCount() that were skipped in idle loops rather than
+    // run, see setIdleDetectionEnabled. Counted with or without perf
+    // counters, and not part of save states.
+    public long getIdleCycleCount()
+    {
+        return idleCycles;
+    }
+
+    // Current value of a REG_* register. Unlike a program read of FLAGS
+    // this doesn't clear the system flags.
+    public char getRegister(int reg)
+    {
+        return Regs[reg];
+    }
+
+    // The instruction register, the instruction that runs next.
+    public char getInstruction()
+    {
+        return RegInst;
+    }
+
+    // Records every instruction in recorder from now on, null stops
+    // recording. While tracing the JIT is bypassed.
+    public void setTraceRecorder(TraceRecorder recorder)
+    {
+        trace = recorder;
+    }
+
+    public TraceRecorder getTraceRecorder()
+    {
+        return trace;
+    }
+
+    // INST_*, JUMP_* and REG_* names, for disassembly and reports.
+    public static String instructionName(int inst)
+    {
+        return inst < INST_NAMES.length ? INST_NAMES[inst] : "INST" + Integer.toHexString(inst);
+    }
+
+    public static String jumpName(int jump)
+    {
+        return JUMP_NAMES[jump];
+    }
+
+    public static String registerName(int reg)
+    {
+        return REG_NAMES[reg];
+    }
+
+    // True if the last cycle() call found the CPU spinning in an idle loop
+    // and skipped the rest of its budget.
+    public boolean isIdle()
+    {
+        return idle;
+    }
+
+    // True if the idle loop isIdle() found reads RAM (an i_pyarray or
+    // i_pymemory device). The host, another core or a peripheral backend
+    // sharing it can change it without a write through the bus, so nothing
+    // tells the CPU the loop may have ended. CpuRunner doesn't park such a
+    // CPU.
+    public boolean isIdlePollingMemory()
+    {
+        return idle && idlePollingMemory;
+    }
+
+    // Idle loop detection is on by default. It never changes the CPU's
+    // state, but skipped cycles count in getCycleCount() like the ones run
+    // (getIdleCycleCount() has them), turn it off when cycles per second
+    // should measure execution speed.
+    public void setIdleDetectionEnabled(boolean enabled)
+    {
+        idleDetection = enabled;
+        idleHead = -1;
+    }
+
+    public boolean isIdleDetectionEnabled()
+    {
+        return idleDetection;
+    }
+
+    // Called after a jump backwards (or to itself) was taken, at cycle i of
+    // cycle(count). Returns the new i.
+    //
+    // The first time the loop head is reached the registers are stored.
+    // If the loop head is reached again with nothing but registers touched
+    // on the way (no MEMDATA writes, which covers FNC and every peripheral
+    // write, no MEMADD reads of devices that aren't i_pypollable, and no
+    // FLAGS reads with their clear on read) and the registers are the same,
+    // every further trip round the loop will be exactly the same. The
+    // registers are compared one and two trips later, ALU operations toggle
+    // the ALU flags so a loop with an odd number of them only repeats every
+    // other trip. The rest of count is then skipped in whole periods, so the
+    // CPU ends in the state the interpreter would have left it in.
+    //
+    // Polled memory can still be changed by another thread, skipping just
+    // makes such a change land after this cycle() call, which it could have
+    // anyway. A CpuRunner parks an idle CPU until it is woken though, so
+    // whoever changes an i_pypollable device must wake it. RAM is written
+    // without any notice, see isIdlePollingMemory.
+    private int checkIdle(int i, int count)
+    {
+        long now = cycleCount + i;
+
+        // Waiting for the interrupt, which is taken at the next poll.
+        if ( interrupts != null && interrupts.isRequesting() )
+        {
+            return i;
+        }
+
+        if ( idleHead == Regs[REG_PC] && !sideEffect )
+        {
+            if ( Arrays.equals(Regs, idleRegs) )
+            {
+                int period = (int)(now - idleStart);
+                int skip = (count - i) / period * period;
+
+                if ( skip > 0 )
+                {
+                    idle = true;
+                    idlePollingMemory = memoryPolled;
+                    idleCycles += skip;
+                    if ( perf != null )
+                    {
+                        perf.idle(skip);
+                    }
+                    if ( trace != null )
+                    {
+                        trace.idle(skip);
+                    }
+                }
+                idleStart = now + skip;
+                return i + skip;
+            }
+            if ( !idleSecondTrip )
+            {
+                // Keep the snapshot, compare again after the next trip.
+                idleSecondTrip = true;
+                return i;
+            }
+        }
+
+        idleHead = Regs[REG_PC];
+        idleStart = now;
+        System.arraycopy(Regs, 0, idleRegs, 0, Regs.length);
+        idleSecondTrip = false;
+        sideEffect = false;
+        memoryPolled = false;
+        return i;
+    }
+
+    // Called at cycle i of cycle(), between two instructions. Takes a
+    // profiler sample if one is due, then looks for interrupts, and works
+    // out when to poll next.
+    private void poll(int i)
+    {
+        pollAt = Integer.MAX_VALUE;
+
+        if ( profiler != null )
+        {
+            long now = cycleCount + i;
+
+            if ( now >= profiler.nextSample() )
+            {
+                profiler.sample(now, Regs[REG_PC]);
+            }
+            pollAt = (int)Math.min(i + profiler.nextSample() - now, Integer.MAX_VALUE);
+        }
+        if ( interrupts != null )
+        {
+            pollAt = Math.min(pollAt, i + INTERRUPT_POLL_INTERVAL);
+            pollInterrupts();
+        }
+    }
+
+    // Takes the next interrupt if one is pending, see InterruptController.
+    private void pollInterrupts()
+    {
+        int line = interrupts.take();
+        if ( line >= 0 )
+        {
+            // Return to the instruction that was about to run.
+            System.arraycopy(Regs, 0, interrupts.savedRegs, 0, Regs.length);
+            pushFrame(Regs[REG_PC]);
+            Regs[REG_PC] = interrupts.vector(line);
+            if ( profiler != null )
+            {
+                profiler.call(Regs[REG_PC]);
+            }
+            loadNextInstruction(false);
+        }
+    }
+
+    // Samples the program with profiler from now on, null stops profiling.
+    // See GuestProfiler.
+    public void setProfiler(GuestProfiler profiler)
+    {
+        if ( profiler != null )
+        {
+            profiler.start(cycleCount);
+        }
+        this.profiler = profiler;
+    }
+
+    public GuestProfiler getProfiler()
+    {
+        return profiler;
+    }
+
+    // Turns the execution counters on or off. Off costs one null check per
+    // instruction, turning them back on starts from zero.
+    public void setPerfCountersEnabled(boolean enabled)
+    {
+        if ( enabled && perf == null )
+        {
+            perf = new PerfCounters();
+        }
+        else if ( !enabled )
+        {
+            perf = null;
+        }
+    }
+
+    // The counters, or null when they are off.
+    public PerfCounters getPerfCounters()
+    {
+        return perf;
+    }
+
+    public boolean isJitEnabled()
+    {
+        return blockCache != null;
+    }
+
+    // Bytes saveState needs at most.
+    public int getStateSize()
+    {
+        int size = 4 + 4 + 4 + 17 * 2 + 8;          // Header, registers, cycle count
+
+        size += 4 + 4 + 4;                          // RAM base, size and page count
+        if ( ramBlock != null )
+        {
+            size += ( MemoryMap.PAGE_COUNT + 1 ) * 2 + ramBlock.getSize() * 2;
+        }
+
+        size += 1 + 4;                              // User ROM
+        if ( userRom != null )
+        {
+            size += userRom.getSize() * 2;
+        }
+
+        size += 4;                                  // Peripherals
+        for ( i_pybus device : peripherals )
+        {
+            if ( device instanceof i_pystate )
+            {
+                size += 4 + 4 + ((i_pystate)device).state_size();
+            }
+        }
+        return size;
+    }
+
+    // Writes the CPU state to out, little endian, starting at its position.
+    //
+    // A full state holds the registers, RAM, the User ROM if the program
+    // changed it (an unchanged one is reloaded from its image on restore)
+    // and the state of peripherals implementing i_pystate.
+    //
+    // An incremental state only holds the RAM pages and User ROM changed
+    // since the last saveState or loadState, and must be loaded on top of
+    // that state. RAM implementing i_pydirty knows its written pages
+    // whoever wrote them, other RAM is saved whole.
+    public void saveState(ByteBuffer out, boolean incremental)
+    {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+
+        out.putInt(STATE_MAGIC);
+        out.putInt(STATE_VERSION);
+        out.putInt(incremental ? STATE_INCREMENTAL : 0);
+
+        for ( char reg : Regs )
+        {
+            out.putChar(reg);
+        }
+        out.putChar(RegInst);
+        out.putLong(cycleCount);
+
+        saveRam(out, incremental);
+
+        boolean modified = userRom instanceof UserRom && ((UserRom)userRom).isModified();
+        if ( incremental && !userRomDirty )
+        {
+            out.put((byte)USER_ROM_UNCHANGED);
+        }
+        else if ( modified )
+        {
+            char[] data = ((UserRom)userRom).getData();
+
+            out.put((byte)USER_ROM_INCLUDED);
+            out.putInt(data.length);
+            putChars(out, data, 0, data.length);
+        }
+        else
+        {
+            out.put((byte)USER_ROM_FROM_FILE);
+        }
+
+        int count = 0;
+        for ( i_pybus device : peripherals )
+        {
+            if ( device instanceof i_pystate )
+            {
+                count++;
+            }
+        }
+        out.putInt(count);
+        for ( int i = 0; i < peripherals.size(); i++ )
+        {
+            if ( peripherals.get(i) instanceof i_pystate )
+            {
+                int lengthAt = out.position() + 4;
+
+                out.putInt(i);
+                out.putInt(0);
+                ((i_pystate)peripherals.get(i)).save_state(out);
+                out.putInt(lengthAt, out.position() - lengthAt - 4);
+            }
+        }
+
+        clearRamDirty();
+        userRomDirty = false;
+        out.order(order);
+    }
+
+    // Restores a state written by saveState. A full state replaces
+    // everything and reloads the ROM images, an incremental one is applied
+    // on top of the current state. Throws IllegalArgumentException, leaving
+    // the CPU as it was, if the state isn't a save state of this version,
+    // is cut short or the RAM or User ROM don't match.
+    public void loadState(ByteBuffer in)
+    {
+        // Go through all of it before changing anything.
+        try
+        {
+            readState(in.duplicate().order(ByteOrder.LITTLE_ENDIAN), false);
+        }
+        catch ( BufferUnderflowException ex )
+        {
+            throw new IllegalArgumentException("Save state is cut short", ex);
+        }
+
+        ByteOrder order = in.order();
+        in.order(ByteOrder.LITTLE_ENDIAN);
+
+        try
+        {
+            readState(in, true);
+        }
+        finally
+        {
+            in.order(order);
+        }
+
+        // Everything decoded or compiled may be stale.
+        idleHead = -1;
+        mapCode();
+        decodeCache.clear();
+        if ( blockCache != null )
+        {
+            blockCache.clear();
+        }
+        if ( threadedCode != null )
+        {
+            threadedCode.clear();
+        }
+        clearRamDirty();
+        userRomDirty = false;
+    }
+
+    // Reads a save state from in, which is little endian. Only checks that
+    // it is one this CPU can load, unless apply.
+    private void readState(ByteBuffer in, boolean apply)
+    {
+        if ( in.getInt() != STATE_MAGIC )
+        {
+            throw new IllegalArgumentException("Not a PyCPU save state");
+        }
+        int version = in.getInt();
+        if ( version != STATE_VERSION )
+        {
+            throw new IllegalArgumentException("Unsupported save state version " + version);
+        }
+        boolean incremental = ( in.getInt() & STATE_INCREMENTAL ) != 0;
+
+        char[] regs = new char[Regs.length];
+        for ( int i = 0; i < regs.length; i++ )
+        {
+            regs[i] = in.getChar();
+        }
+        char inst = in.getChar();
+        long cycles = in.getLong();
+
+        if ( apply )
+        {
+            System.arraycopy(regs, 0, Regs, 0, Regs.length);
+            RegInst = inst;
+            cycleCount = cycles;
+            if ( !incremental )
+            {
+                mainRom.init();
+            }
+        }
+        readRam(in, apply);
+
+        int userState = in.get();
+        if ( userState == USER_ROM_INCLUDED )
+        {
+            int length = in.getInt();
+            if ( !( userRom instanceof UserRom ) || length != userRom.getSize() )
+            {
+                throw new IllegalArgumentException("Save state User ROM doesn't match this CPU");
+            }
+            if ( in.remaining() < length * 2 )
+            {
+                throw new BufferUnderflowException();
+            }
+            if ( apply )
+            {
+                ((UserRom)userRom).setContents(in.asCharBuffer());
+            }
+            in.position(in.position() + length * 2);
+        }
+        else if ( userState == USER_ROM_FROM_FILE )
+        {
+            if ( apply && userRom != null )
+            {
+                userRom.init();
+            }
+        }
+        else if ( userState != USER_ROM_UNCHANGED )
+        {
+            throw new IllegalArgumentException("Unknown save state User ROM entry " + userState);
+        }
+
+        int count = in.getInt();
+        for ( int i = 0; i < count; i++ )
+        {
+            int index = in.getInt();
+            int length = in.getInt();
+
+            if ( length < 0 || length > in.remaining() )
+            {
+                throw new BufferUnderflowException();
+            }
+
+            int end = in.position() + length;
+            int limit = in.limit();
+
+            // Skip the state of peripherals this CPU doesn't have.
+            if ( apply && index >= 0 && index < peripherals.size() && peripherals.get(index) instanceof i_pystate )
+            {
+                in.limit(end);
+                ((i_pystate)peripherals.get(index)).load_state(in);
+                in.limit(limit);
+            }
+            in.position(end);
+        }
+    }
+
+    // RAM base, size, page count, then each page as its number and words.
+    private void saveRam(ByteBuffer out, boolean incremental)
+    {
+        if ( ramBlock == null )
+        {
+            out.putInt(0);
+            out.putInt(0);
+            out.putInt(0);
+            return;
+        }
+
+        int base = ramBlock.getBaseAddress();
+        int end = Math.min(base + ramBlock.getSize(), 0x10000);
+        int first = base >> MemoryMap.PAGE_BITS;
+        int last = (end - 1) >> MemoryMap.PAGE_BITS;
+        char[] data = ramBlock instanceof i_pyarray ? ((i_pyarray)ramBlock).getData() : null;
+        i_pydirty dirty = ramBlock instanceof i_pydirty ? (i_pydirty)ramBlock : null;
+
+        out.putInt(base);
+        out.putInt(ramBlock.getSize());
+        int countAt = out.position();
+        out.putInt(0);
+
+        int count = 0;
+        for ( int page = first; page <= last && base < end; page++ )
+        {
+            if ( incremental && dirty != null && !dirty.isDirty(page) )
+            {
+                continue;
+            }
+
+            int from = Math.max(base, page << MemoryMap.PAGE_BITS);
+            int to = Math.min(end, (page + 1) << MemoryMap.PAGE_BITS);
+
+            out.putChar((char)page);
+            if ( data != null )
+            {
+                putChars(out, data, from - base, to - from);
+            }
+            else
+            {
+                for ( int address = from; address < to; address++ )
+                {
+                    out.putChar(ramBlock.read_mem((char)address));
+                }
+            }
+            count++;
+        }
+        out.putInt(countAt, count);
+    }
+
+    private void readRam(ByteBuffer in, boolean apply)
+    {
+        int base = in.getInt();
+        int size = in.getInt();
+        int count = in.getInt();
+
+        if ( count == 0 )
+        {
+            return;
+        }
+        if ( ramBlock == null || base != ramBlock.getBaseAddress() || size != ramBlock.getSize() )
+        {
+            throw new IllegalArgumentException("Save state RAM doesn't match this CPU");
+        }
+
+        int end = Math.min(base + size, 0x10000);
+        char[] data = ramBlock instanceof i_pyarray ? ((i_pyarray)ramBlock).getData() : null;
+
+        for ( int i = 0; i < count; i++ )
+        {
+            int page = in.getChar();
+            int from = Math.max(base, page << MemoryMap.PAGE_BITS);
+            int to = Math.min(end, (page + 1) << MemoryMap.PAGE_BITS);
+
+            if ( from >= to )
+            {
+                throw new IllegalArgumentException("Save state RAM page 0x" + Integer.toHexString(page) + " is outside the RAM");
+            }
+            if ( in.remaining() < (to - from) * 2 )
+            {
+                throw new BufferUnderflowException();
+            }
+
+            if ( !apply )
+            {
+                in.position(in.position() + (to - from) * 2);
+            }
+            else if ( data != null )
+            {
+                in.asCharBuffer().get(data, from - base, to - from);
+                in.position(in.position() + (to - from) * 2);
+            }
+            else
+            {
+                for ( int address = from; address < to; address++ )
+                {
+                    ramBlock.write_mem((char)address, in.getChar());
+                }
+            }
+        }
+    }
+
+    private void clearRamDirty()
+    {
+        if ( ramBlock instanceof i_pydirty )
+        {
+            ((i_pydirty)ramBlock).clearDirty();
+        }
+    }
+
+    // Bulk put through a char view, the view shares out's byte order.
+    private static void putChars(ByteBuffer out, char[] data, int offset, int length)
+    {
+        out.asCharBuffer().put(data, offset, length);
+        out.position(out.position() + length * 2);
+    }
+
+    // Runs a compiled block, leaving the number of instructions it ran in
+    // blockRan. Returns true if the PC should be incremented.
+    private boolean runBlock(BlockCache.Entry block)
+    {
+        blockRan = block.length;
+        runningBlock = block;
+        deopt = false;
+
+        try
+        {
+            return block.code.run(jitOps, Regs);
+        }
+        catch ( Deoptimize ex )
+        {
+            // An instruction of the block made a peripheral rewrite the
+            // block's own code. That instruction is done and stored its PC,
+            // the rest of the block is stale, carry on from the next
+            // instruction without it. If it was the last instruction its
+            // jump is still to come.
+            blockRan = block.instructionsTo(Regs[REG_PC]);
+            return blockRan < block.length || branch(block.jump);
+        }
+        catch ( RuntimeException ex )
+        {
+            // The block stored the PC of the failing instruction, load it in
+            // to the instruction register like the interpreter would have.
+            RegInst = (char)codeMap.read(Regs[REG_PC]);
+            // The instructions before it ran, cycle() doesn't get to count
+            // them. The perf counters count the failing one too, as the
+            // interpreter's do.
+            blockRan = block.instructionsTo(Regs[REG_PC]);
+            cycleCount += blockRan - 1;
+            throw ex;
+        }
+        finally
+        {
+            runningBlock = null;
+            deopt = false;
+            if ( perf != null )
+            {
+                perf.block(block.ops, blockRan);
+            }
+        }
+    }
+
+    // Thrown by JitOps to leave a block whose code was rewritten while it
+    // ran, one instance is enough as it never leaves runBlock.
+    private static final class Deoptimize extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
 
-        // Init RAM and ROMs
-        mainRom.init();
-        RegPC = mainRom.getBaseAddress();
+        static final Deoptimize INSTANCE = new Deoptimize();
 
-        if ( userRom != null)
+        private Deoptimize()
         {
-            userRom.init();
+            super(null, null, false, false);
         }
-        else
+    }
+
+    // Runs instructions through their bound handlers from cycle i of
+    // cycle(count), until count or the next interrupt poll is reached, the
+    // PC gets to code without a handler or, with the JIT on, a jump is
+    // taken. Returns the new i.
+    //
+    // Only taken jumps load the instruction register on the way, the PC is
+    // just incremented past everything else and the instruction register
+    // is loaded once on the way out.
+    private int runThreaded(int i, int count)
+    {
+        ThreadedCode code = threadedCode;
+        int start = i;
+
+        // The code was rewritten after the instruction register was loaded,
+        // the interpreter runs what the register holds.
+        if ( RegInst != codeMap.read(Regs[REG_PC]) )
         {
-            RegFlags |= FLAG_ERROR_BIT;
-            retVal = false;
+            return i;
         }
 
-        if ( ramBlock != null)
+        try
         {
-            ramBlock.init();
+            while ( i < count && i < pollAt )
+            {
+                char pc = Regs[REG_PC];
+                CompiledBlock handler = code.get(pc);
+
+                if ( handler == null )
+                {
+                    handler = code.build(codeMap, pc);
+                    if ( handler == null )
+                    {
+                        break;
+                    }
+                }
+                if ( perf != null )
+                {
+                    perf.instruction(code.op(pc));
+                }
+
+                boolean incPC = handler.run(jitOps, Regs);
+                i++;
 
-            RegStack = ramBlock.getBaseAddress();
+                if ( incPC )
+                {
+                    Regs[REG_PC]++;
+                }
+                else
+                {
+                    // Off in the weeds resets the CPU here, like the interpreter.
+                    loadNextInstruction(false);
+                    if ( idleDetection && Regs[REG_PC] <= pc )
+                    {
+                        i = checkIdle(i, count);
+                    }
+                    if ( blockCache != null )
+                    {
+                        // A block may start here, let cycle() look.
+                        break;
+                    }
+                }
+            }
         }
-        else
+        catch ( RuntimeException ex )
         {
-            RegFlags |= FLAG_ERROR_BIT;
-            retVal = false;
+            // The PC is the failing instruction's, load it in to the
+            // instruction register like the interpreter would have.
+            RegInst = (char)codeMap.read(Regs[REG_PC]);
+            // cycle() only counts the cycles up to start.
+            cycleCount += i - start;
+            throw ex;
         }
 
         loadNextInstruction(false);
-
-        return retVal;
-    }
-
-    public void cycle(int count)
-    {
-        for ( int i = 0; i < count; i++ )
-        {
-            // Execute is evaluated first, then it's return is
-            // passed to load, which decides if the PC is incremented or not
-            // (aka. if a jump instruction happened or not)
-            loadNextInstruction(executeInstruction());
-        }
+        return i;
     }
 
     public boolean reset(boolean cold)
@@ -177,16 +1212,45 @@ public class PyCPU
         }
         else
         {
-            RegPC = 0;
-            RegStack = 0; // TODO Same as init, find where it starts.
-            RegFlags |= FLAG_RESET_BIT;
+            Regs[REG_PC] = 0;
+            Regs[REG_STACK] = 0; // TODO Same as init, find where it starts.
+            Regs[REG_FLAGS] |= FLAG_RESET_BIT;
+            if ( interrupts != null )
+            {
+                interrupts.init();
+            }
         }
 
         return retVal;
     }
 
+    // Maps a peripheral in to the peripheral window. Fails if any of it is
+    // outside the window or overlaps a peripheral already added.
     public boolean addPeripheral(i_pybus periph)
     {
+        if ( periph == null || periph.getSize() <= 0 )
+        {
+            return false;
+        }
+
+        int start = periph.getBaseAddress();
+        int end = start + periph.getSize();
+
+        if ( start < PERIPHERAL_START || end > PERIPHERAL_END || dataMap.isMapped(start, end) )
+        {
+            return false;
+        }
+
+        if ( periph instanceof InterruptController )
+        {
+            if ( interrupts != null )
+            {
+                return false;
+            }
+            interrupts = (InterruptController)periph;
+        }
+
+        dataMap.map(periph, PERIPHERAL_START, PERIPHERAL_END);
         return peripherals.add(periph);
     }
 
@@ -194,19 +1258,38 @@ public class PyCPU
     {
         i_pybus item = peripherals.remove(periphIndex);
 
+        if ( item == interrupts )
+        {
+            interrupts = null;
+        }
+
+        // Other peripherals may share pages with it, rebuild the whole map.
+        dataMap.clear();
+        dataMap.map(ramBlock, RAM_START, RAM_END);
+        for ( i_pybus periph : peripherals )
+        {
+            dataMap.map(periph, PERIPHERAL_START, PERIPHERAL_END);
+        }
+
         return (item != null);
     }
 
     private boolean executeInstruction()
     {
         // IIIII JJJ AAAA BBBB
-        byte inst = (byte)((RegInst >> 11) & 0x1F);
-        byte source = (byte)((RegInst >> 4) & 0xF);
-        byte dest = (byte)(RegInst & 0xF);
-        byte jump = (byte)((RegInst >> 8) & 0x7);
-        boolean doJump = false;
+        char address = Regs[REG_PC];
+        int decoded = decodeCache.lookup(address, RegInst);
+        byte source = DecodeCache.source(decoded);
+        byte dest = DecodeCache.dest(decoded);
+        int op = DecodeCache.op(decoded);
+        boolean interruptReturn = false;
+
+        if ( perf != null )
+        {
+            perf.instruction(op);
+        }
 
-        switch ( inst )
+        switch ( op )
         {
             case INST_COPY:
                 instruction_copy(source, dest);
@@ -279,73 +1362,105 @@ public class PyCPU
                 break;
             case INST_FNC:
                 instruction_fnc();
-                doJump = true;
-                jump = JUMP_NONE;
-                // Set jump to None to ignore any jump instructions that might have
-                // accidentally been tacked on.
                 break;
             case INST_FNR:
-                instruction_fnr();
-                doJump = true;
-                jump = JUMP_NONE;
-                // Set jump to None to ignore any jump instructions that might have
-                // accidentally been tacked on.
+                interruptReturn = instruction_fnr();
                 break;
         }
 
+        if ( trace != null )
+        {
+            traceInstruction(address, op, dest);
+        }
 
-        switch ( jump )
+        // The interrupted program's PC is back already.
+        if ( interruptReturn )
         {
-            case JUMP_NONE:
-                // NO action
-                break;
-            case JUMP_GTZ:
-                if ( ( RegFlags & (FLAG_ZERO_BIT | FLAG_NEGATIVE_BIT )) == 0 )
-                {
-                    doJump = true;
-                }
-                break;
-            case JUMP_EZ:
-                if ( ( RegFlags & FLAG_ZERO_BIT ) > 0 )
-                {
-                    doJump = true;
-                }
-                break;
-            case JUMP_GTEZ:
-                if ( ( RegFlags & ( FLAG_NEGATIVE_BIT )) == 0 )
-                {
-                    doJump = true;
-                }
-                break;
-            case JUMP_LTZ:
-                if ( ( RegFlags & ( FLAG_NEGATIVE_BIT ) ) > 0 )
-                {
-                    doJump = true;
-                }
-                break;
-            case JUMP_LTEZ:
-                if ( ( RegFlags & (FLAG_ZERO_BIT | FLAG_NEGATIVE_BIT )) > 0 )
-                {
-                    doJump = true;
-                }
-                break;
-            case JUMP_NZ:
-                if ( ( RegFlags & ( FLAG_ZERO_BIT ) ) == 0 )
-                {
-                    doJump = true;
-                }
-                break;
-            case JUMP_JUMP:
-                doJump = true;
+            return false;
+        }
+
+        // FNC and FNR always jump, any jump bits tacked on to them were
+        // already dropped by the decoder.
+        if ( ( decoded & DecodeCache.ALWAYS_JUMP_BIT ) != 0 )
+        {
+            return branch(JUMP_JUMP);
+        }
+        return branch(DecodeCache.jump(decoded));
+    }
+
+    // Called before the jump is applied, pc is the instruction's address.
+    private void traceInstruction(char pc, int op, int dest)
+    {
+        int word = codeMap.read(pc);
+
+        trace.instruction(pc, (char)word, Regs[TraceDecoder.resultRegister(op, dest)], Regs[REG_FLAGS]);
+    }
+
+    // Returns true if the PC should be incremented, false if the jump was
+    // taken and the PC loaded with the jump address.
+    private boolean branch(int jump)
+    {
+        // Only the conditional jumps look at the flags.
+        boolean taken = jump != JUMP_NONE && ( jump == JUMP_JUMP || JUMP_TAKEN[(jump << 2) | ((Regs[REG_FLAGS] >> 2) & 0x3)] );
+
+        // Instructions without a jump aren't counted, compiled blocks
+        // don't branch after each one.
+        if ( perf != null && jump != JUMP_NONE )
+        {
+            perf.jump(jump, taken);
         }
 
-        if ( doJump )
+        if ( taken )
         {
             // Load the address to jump to.
-            RegPC = (char)(RegJump + RegJumpOffset);
+            Regs[REG_PC] = (char)(Regs[REG_JUMP] + Regs[REG_JUMP_OFFSET]);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean[] buildJumpTable()
+    {
+        boolean[] table = new boolean[32];
+
+        for ( int jump = 0; jump < 8; jump++ )
+        {
+            for ( int nz = 0; nz < 4; nz++ )
+            {
+                char flags = (char)(nz << 2);
+                boolean taken = false;
+
+                switch ( jump )
+                {
+                    case JUMP_NONE:
+                        break;
+                    case JUMP_GTZ:
+                        taken = ( flags & (FLAG_ZERO_BIT | FLAG_NEGATIVE_BIT )) == 0;
+                        break;
+                    case JUMP_EZ:
+                        taken = ( flags & FLAG_ZERO_BIT ) > 0;
+                        break;
+                    case JUMP_GTEZ:
+                        taken = ( flags & FLAG_NEGATIVE_BIT ) == 0;
+                        break;
+                    case JUMP_LTZ:
+                        taken = ( flags & FLAG_NEGATIVE_BIT ) > 0;
+                        break;
+                    case JUMP_LTEZ:
+                        taken = ( flags & (FLAG_ZERO_BIT | FLAG_NEGATIVE_BIT )) > 0;
+                        break;
+                    case JUMP_NZ:
+                        taken = ( flags & FLAG_ZERO_BIT ) == 0;
+                        break;
+                    case JUMP_JUMP:
+                        taken = true;
+                        break;
+                }
+                table[(jump << 2) | nz] = taken;
+            }
         }
 
-        return !doJump;
+        return table;
     }
 
     private void instruction_copy(byte source, byte dest)
@@ -359,18 +1474,22 @@ public class PyCPU
 
         if ( value == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
         else if ( value < 0 )
         {
-            RegFlags |= FLAG_NEGATIVE_BIT;
+            Regs[REG_FLAGS] |= FLAG_NEGATIVE_BIT;
         }
     }
 
+    // ALU flags are set as each operation runs rather than worked out lazily
+    // when a jump or FLAGS read needs them. Every ALU operation toggles the
+    // ALU flags (XOR, not clear) before setting its own, so it needs the
+    // flags of the operation before it and none can be skipped.
     private void instruction_inc (byte source, boolean signed)
     {
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         if ( signed )
         {
@@ -378,19 +1497,19 @@ public class PyCPU
 
             if ( tmpVal == 0 )
             {
-                RegFlags |= FLAG_ZERO_BIT;
+                Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
             }
             else if ( tmpVal > CHAR_SIGNED_MAX )
             {
                 tmpVal = CHAR_SIGNED_MIN + (tmpVal - CHAR_SIGNED_MAX);
-                RegFlags |= FLAG_CARRY_BIT | FLAG_NEGATIVE_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT | FLAG_NEGATIVE_BIT;
             }
             else if ( tmpVal < 0 )
             {
-                RegFlags |= FLAG_NEGATIVE_BIT;
+                Regs[REG_FLAGS] |= FLAG_NEGATIVE_BIT;
             }
 
-            RegALU = utils.signed_int_to_char(tmpVal);
+            Regs[REG_ALU] = utils.signed_int_to_char(tmpVal);
 
         }
         else
@@ -400,17 +1519,17 @@ public class PyCPU
             if ( val > CHAR_UNSIGNED_MAX)
             {
                 val = 0;
-                RegFlags |= FLAG_CARRY_BIT | FLAG_ZERO_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT | FLAG_ZERO_BIT;
             }
 
-            RegALU = (char)val;
+            Regs[REG_ALU] = (char)val;
         }
     }
 
     private void instruction_dec (byte source, boolean signed)
     {
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         if ( signed )
         {
@@ -418,19 +1537,19 @@ public class PyCPU
 
             if ( tmpVal == 0 )
             {
-                RegFlags |= FLAG_ZERO_BIT;
+                Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
             }
             else if ( tmpVal < CHAR_SIGNED_MIN )
             {
                 tmpVal = CHAR_SIGNED_MAX;
-                RegFlags |= FLAG_CARRY_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT;
             }
             else if ( tmpVal < 0 )
             {
-                RegFlags |= FLAG_NEGATIVE_BIT;
+                Regs[REG_FLAGS] |= FLAG_NEGATIVE_BIT;
             }
 
-            RegALU = utils.signed_int_to_char(tmpVal);
+            Regs[REG_ALU] = utils.signed_int_to_char(tmpVal);
 
         }
         else
@@ -440,12 +1559,12 @@ public class PyCPU
             if ( val < 0)
             {
                 val = CHAR_UNSIGNED_MAX;
-                RegFlags |= FLAG_CARRY_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT;
             } else if ( val == 0 ) {
-                RegFlags |= FLAG_ZERO_BIT;
+                Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
             }
 
-            RegALU = (char)val;
+            Regs[REG_ALU] = (char)val;
         }
     }
 
@@ -454,7 +1573,7 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         if ( signed )
         {
@@ -463,7 +1582,7 @@ public class PyCPU
 
             if ( tmpVal > CHAR_UNSIGNED_MAX )
             {
-                RegFlags |= FLAG_CARRY_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT;
             }
 
         }
@@ -474,20 +1593,20 @@ public class PyCPU
             if ( tmpVal > CHAR_UNSIGNED_MAX )
             {
                 tmpVal = tmpVal - CHAR_UNSIGNED_MAX;
-                RegFlags |= FLAG_CARRY_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT;
             }
         }
 
 
-        RegALU = (char)tmpVal;
+        Regs[REG_ALU] = (char)tmpVal;
 
-        if ( RegALU < 0 )
+        if ( Regs[REG_ALU] < 0 )
         {
-            RegFlags |= FLAG_NEGATIVE_BIT;
+            Regs[REG_FLAGS] |= FLAG_NEGATIVE_BIT;
         }
-        else if ( RegALU == 0 )
+        else if ( Regs[REG_ALU] == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
 
     }
@@ -498,7 +1617,7 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         if ( signed )
         {
@@ -508,7 +1627,7 @@ public class PyCPU
             if ( tmpVal < CHAR_SIGNED_MIN )
             {
                 tmpVal = tmpVal + CHAR_SIGNED_MAX;
-                RegFlags |= FLAG_CARRY_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT;
             }
         }
         else
@@ -518,20 +1637,20 @@ public class PyCPU
             if ( tmpVal < 0 )
             {
                 tmpVal = tmpVal - CHAR_UNSIGNED_MAX;
-                RegFlags |= FLAG_CARRY_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT;
             }
         }
 
         if ( tmpVal < 0 )
         {
-            RegFlags |= FLAG_NEGATIVE_BIT;
+            Regs[REG_FLAGS] |= FLAG_NEGATIVE_BIT;
         }
         else if ( tmpVal == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
 
-        RegALU = (char)tmpVal;
+        Regs[REG_ALU] = (char)tmpVal;
     }
 
     private void instruction_mul(byte source, byte source_two, boolean signed)
@@ -539,7 +1658,7 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         if ( signed )
         {
@@ -547,10 +1666,10 @@ public class PyCPU
 
             if ( tmpVal > CHAR_SIGNED_MAX )
             {
-                RegFlags |= FLAG_CARRY_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT;
             }
 
-            RegALU = utils.signed_int_to_char(tmpVal);
+            Regs[REG_ALU] = utils.signed_int_to_char(tmpVal);
         }
         else
         {
@@ -559,23 +1678,23 @@ public class PyCPU
             if ( tmpVal > CHAR_UNSIGNED_MAX )
             {
                 tmpVal = 0;
-                RegFlags |= FLAG_CARRY_BIT;
+                Regs[REG_FLAGS] |= FLAG_CARRY_BIT;
             }
 
-            RegALU = (char)tmpVal;
+            Regs[REG_ALU] = (char)tmpVal;
         }
 
         if ( tmpVal > CHAR_SIGNED_MAX )
         {
-            RegFlags |= FLAG_CARRY_BIT;
+            Regs[REG_FLAGS] |= FLAG_CARRY_BIT;
         }
         else if ( tmpVal < 0 )
         {
-            RegFlags |= FLAG_NEGATIVE_BIT;
+            Regs[REG_FLAGS] |= FLAG_NEGATIVE_BIT;
         }
         else if ( tmpVal == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
     }
 
@@ -585,7 +1704,7 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
 
         if ( signed )
@@ -595,13 +1714,13 @@ public class PyCPU
             if ( tmpVal < CHAR_SIGNED_MIN )
             {
                 tmpVal = tmpVal + CHAR_SIGNED_MAX;
-                RegFlags |= FLAG_BORROW_BIT;
+                Regs[REG_FLAGS] |= FLAG_BORROW_BIT;
             }
             else if ( tmpVal < 0 )
             {
-                RegFlags |= FLAG_NEGATIVE_BIT;
+                Regs[REG_FLAGS] |= FLAG_NEGATIVE_BIT;
             }
-            RegALU = utils.signed_int_to_char(tmpVal);
+            Regs[REG_ALU] = utils.signed_int_to_char(tmpVal);
         }
         else
         {
@@ -611,15 +1730,15 @@ public class PyCPU
             if ( tmpVal < 0 )
             {
                 tmpVal = tmpVal + CHAR_UNSIGNED_MAX;
-                RegFlags |= FLAG_BORROW_BIT;
+                Regs[REG_FLAGS] |= FLAG_BORROW_BIT;
             }
-            RegALU = (char)tmpVal;
+            Regs[REG_ALU] = (char)tmpVal;
         }
 
         // Common to both Signed and Unsigned
         if ( tmpVal == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
     }
 
@@ -628,16 +1747,16 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         tmpVal = read_from_reg(source) & read_from_reg(source_two);
 
         if ( tmpVal == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
 
-        RegALU = (char)tmpVal;
+        Regs[REG_ALU] = (char)tmpVal;
     }
 
     private void instruction_or (byte source, byte source_two)
@@ -645,16 +1764,16 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         tmpVal = read_from_reg(source) | read_from_reg(source_two);
 
         if ( tmpVal == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
 
-        RegALU = (char)tmpVal;
+        Regs[REG_ALU] = (char)tmpVal;
     }
 
     private void instruction_not (byte source)
@@ -662,16 +1781,16 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         tmpVal = read_from_reg(source) ^ CHAR_UNSIGNED_MAX;
 
         if ( tmpVal == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
 
-        RegALU = (char)tmpVal;
+        Regs[REG_ALU] = (char)tmpVal;
     }
 
     private void instruction_neg (byte source)
@@ -679,20 +1798,20 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         tmpVal = -utils.signed_char_to_int(read_from_reg(source));
 
         if ( tmpVal == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
         else if ( tmpVal < 0 )
         {
-            RegFlags |= FLAG_NEGATIVE_BIT;
+            Regs[REG_FLAGS] |= FLAG_NEGATIVE_BIT;
         }
 
-        RegALU = utils.signed_int_to_char(tmpVal);
+        Regs[REG_ALU] = utils.signed_int_to_char(tmpVal);
     }
 
     private void instruction_bsl (byte source )
@@ -700,16 +1819,16 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         tmpVal = read_from_reg(source) << 1;
 
         if ( tmpVal == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
 
-        RegALU = (char)tmpVal;
+        Regs[REG_ALU] = (char)tmpVal;
     }
 
     private void instruction_bsr (byte source )
@@ -717,16 +1836,16 @@ public class PyCPU
         int tmpVal;
 
         // This is an ALU operation, clear the flags register of ALU flags.
-        RegFlags = (char)(RegFlags ^ FLAG_ALU_MASK);
+        Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_ALU_MASK);
 
         tmpVal = read_from_reg(source) >> 1;
 
         if ( tmpVal == 0 )
         {
-            RegFlags |= FLAG_ZERO_BIT;
+            Regs[REG_FLAGS] |= FLAG_ZERO_BIT;
         }
 
-        RegALU = (char)tmpVal;
+        Regs[REG_ALU] = (char)tmpVal;
     }
 
     private void instruction_setval (byte dest)
@@ -739,7 +1858,22 @@ public class PyCPU
     private void instruction_fnc()
     {
         // This is not an ALU operation, flags register is not cleared or set.
+        if ( interrupts != null && interrupts.isActive() )
+        {
+            interrupts.callDepth++;
+        }
+        if ( profiler != null )
+        {
+            // The address the jump that follows goes to
+            profiler.call((char)(Regs[REG_JUMP] + Regs[REG_JUMP_OFFSET]));
+        }
+        pushFrame((char)(Regs[REG_PC] + 1));
+    }
 
+    // The stack frame of a call returning to returnPC, also used to enter
+    // an interrupt handler.
+    private void pushFrame(char returnPC)
+    {
         // Process for stack operation.
         // Stack register points to the beginning of the stack
         // Beginning of the stack holds the next available address (aka, end of the stack)
@@ -755,6 +1889,10 @@ public class PyCPU
 
 
         // Function call stack instruction
+        if ( perf != null )
+        {
+            perf.call();
+        }
 
         //  1 : Stack End is loaded into MemAddr
         write_to_reg(REG_MEMADD,read_from_reg(REG_STACK));
@@ -764,7 +1902,7 @@ public class PyCPU
         write_to_reg(REG_MEMADD, (char)(read_from_reg(REG_MEMADD) + 1));
 
         //  3 : Next PC value is pushed to memory, MemAddr incremented
-        write_to_reg(REG_MEMDATA, (char)(read_from_reg(REG_PC) + 1));
+        write_to_reg(REG_MEMDATA, returnPC);
         write_to_reg(REG_MEMADD, (char)(read_from_reg(REG_MEMADD) + 1));
 
         //  4 : Stack address is updated to current address, next memory address written to this address
@@ -774,7 +1912,10 @@ public class PyCPU
         //  5 : Execution continues at location of new function
     }
 
-    private void instruction_fnr()
+    // Returns true if this FNR ended an interrupt handler. The interrupted
+    // program's registers are back then, PC included, and the FNR's jump
+    // must not be taken.
+    private boolean instruction_fnr()
     {
         // This is not an ALU operation, flags register is not cleared or set.
 
@@ -788,6 +1929,29 @@ public class PyCPU
         //  3 : Execution continues at location of function return.
 
         // Function return stack instruction
+        if ( perf != null )
+        {
+            perf.ret();
+        }
+        if ( profiler != null )
+        {
+            profiler.ret();
+        }
+
+        if ( interrupts != null && interrupts.isActive() )
+        {
+            if ( interrupts.callDepth == 0 )
+            {
+                // Return from the interrupt, the program carries on as if
+                // nothing happened. Another pending interrupt is taken at
+                // the next poll.
+                System.arraycopy(interrupts.savedRegs, 0, Regs, 0, Regs.length);
+                interrupts.end();
+                pollAt = 0;
+                return true;
+            }
+            interrupts.callDepth--;
+        }
 
         //  1 : Next PC value is pulled from memory and written to PC Reg
         // Next PC value is Stack Address - 1
@@ -800,110 +1964,57 @@ public class PyCPU
         write_to_reg(REG_STACK, read_from_reg(REG_MEMDATA));
 
         //  3 : Execution continues at location of function return.
+        return false;
     }
 
     private void write_to_reg(byte dest, char value)
+    {
+        if ( ( REG_WRITE_SLOW_MASK & (1 << dest) ) == 0 )
+        {
+            Regs[dest] = value;
+        }
+        else
+        {
+            write_to_reg_slow(dest, value);
+        }
+    }
+
+    private void write_to_reg_slow(byte dest, char value)
     {
         switch ( dest )
         {
-            case REG_JUMP_OFFSET:
-                RegJumpOffset = value;
-                break;
-            case REG_JUMP:
-                RegJump = value;
-                break;
             case REG_MEMADD:
-                RegMemAdd = value;
+                if ( dataMap.hasReadEffects(value) )
+                {
+                    sideEffect = true;
+                }
+                else if ( dataMap.isMemory(value) )
+                {
+                    memoryPolled = true;
+                }
+                Regs[REG_MEMADD] = value;
                 updateMemoryAddress(); // actions taken on update of value (like it would be in an actual CPU)
                 break;
             case REG_MEMDATA:
-                RegMemData = value;
+                sideEffect = true;
+                Regs[REG_MEMDATA] = value;
                 writeMemoryData(); // actions taken on update of value (like it would be in an actual CPU)
                 break;
-            case REG_GP0:
-                RegGp[0] = value;
-                break;
-            case REG_GP1:
-                RegGp[1] = value;
-                break;
-            case REG_GP2:
-                RegGp[2] = value;
-                break;
-            case REG_GP3:
-                RegGp[3] = value;
-                break;
-            case REG_GP4:
-                RegGp[4] = value;
-                break;
-            case REG_GP5:
-                RegGp[5] = value;
-                break;
-            case REG_GP6:
-                RegGp[6] = value;
-                break;
-            case REG_GP7:
-                RegGp[7] = value;
+            default:
+                // PC, Stack, ALU and Flags are read only.
                 break;
         }
-
     }
 
     private char read_from_reg(byte source)
     {
-        char value = 0;
-        switch ( source )
-        {
-            case REG_JUMP_OFFSET:
-                value = RegJumpOffset;
-                break;
-            case REG_JUMP:
-                value = RegJump;
-                break;
-            case REG_MEMADD:
-                value = RegMemAdd;
-                break;
-            case REG_MEMDATA:
-                value = RegMemData;
-                break;
-            case REG_GP0:
-                value = RegGp[0];
-                break;
-            case REG_GP1:
-                value = RegGp[1];
-                break;
-            case REG_GP2:
-                value = RegGp[2];
-                break;
-            case REG_GP3:
-                value = RegGp[3];
-                break;
-            case REG_GP4:
-                value = RegGp[4];
-                break;
-            case REG_GP5:
-                value = RegGp[5];
-                break;
-            case REG_GP6:
-                value = RegGp[6];
-                break;
-            case REG_GP7:
-                value = RegGp[7];
-                break;
-            case REG_PC:
-                value = RegPC;
-                break;
-            case REG_STACK:
-                value = RegStack;
-                break;
-            case REG_ALU:
-                value = RegALU;
-                break;
-            case REG_FLAGS:
-                value = RegFlags;
-                // Systems flags are 'clear on read', ALU flags are cleared on ALU operation
-                RegFlags = (char)(RegFlags ^ FLAG_SYSTEM_MASK);
-                break;
+        char value = Regs[source];
 
+        if ( ( REG_READ_SLOW_MASK & (1 << source) ) != 0 )
+        {
+            // Systems flags are 'clear on read', ALU flags are cleared on ALU operation
+            sideEffect = true;
+            Regs[REG_FLAGS] = (char)(Regs[REG_FLAGS] ^ FLAG_SYSTEM_MASK);
         }
 
         return value;
@@ -913,66 +2024,249 @@ public class PyCPU
     {
         if ( incPC )
         {
-            RegPC++;
+            Regs[REG_PC]++;
+        }
+
+        // Code is in OS ROM or User ROM space
+        int word = codeMap.read(Regs[REG_PC]);
+
+        if ( word == MemoryMap.UNMAPPED )
+        {
+            // We are off in the weeds, reset to address 0 and set error and reset flags
+            Regs[REG_PC] = 0;
+            Regs[REG_FLAGS] |= (FLAG_RESET_BIT | FLAG_ERROR_BIT);
+            if ( perf != null )
+            {
+                perf.memoryError();
+            }
+            word = mainRom.read_mem(Regs[REG_PC]);
+        }
+
+        RegInst = (char)word;
+    }
+
+    // Points the code map at the ROMs' current arrays. ROM images are shared
+    // between CPUs, so a ROM gets a new array when it loads an image or
+    // when a User ROM makes its private copy on the first write.
+    private void mapCode()
+    {
+        codeMap.clear();
+        codeMap.map(mainRom, OS_ROM_START, OS_ROM_END);
+        codeMap.map(userRom, USER_ROM_START, USER_ROM_END);
+    }
+
+    private final class CodeWatcher implements i_pywatcher
+    {
+        private char[] mapped;      // User ROM array the code map points at, null until the first change
+
+        @Override
+        public void mem_changed(char address, int length)
+        {
+            char[] data = userRomData();
+
+            if ( data != mapped )
+            {
+                mapped = data;
+                mapCode();
+            }
+            decodeCache.mem_changed(address, length);
+            userRomDirty = true;
+
+            BlockCache.Entry block = runningBlock;
+            if ( block != null && address < block.start + block.span && address + length > block.start )
+            {
+                deopt = true;
+            }
         }
 
-        if (  RegPC < 0x1000 )
+        private char[] userRomData()
         {
-            // Code is in OS ROM space
-            RegInst = mainRom.read_mem(RegPC);
+            return ((i_pyarray)userRom).getData();
         }
-        else if ( RegPC > 0x4000 & RegPC < 0x7FFF )
+    }
+
+    // Entry points for compiled blocks, kept out of PyCPU's public interface.
+    private final class JitOps implements BlockOps
+    {
+        // copy, set and write can write memory, which may end up rewriting
+        // the running block.
+
+        @Override
+        public void copy(int source, int dest)
         {
-            // Code is in User ROM space
-            RegInst = userRom.read_mem(RegPC);
+            instruction_copy((byte)source, (byte)dest);
+            checkDeopt();
         }
-        else
+
+        @Override
+        public void set(int dest, int value)
         {
-            // We are off in the weeds, reset to address 0 and set error and reset flags
-            RegPC = 0;
-            RegFlags |= (FLAG_RESET_BIT | FLAG_ERROR_BIT);
-            RegInst = mainRom.read_mem(RegPC);
+            instruction_set((byte)dest, value);
+            checkDeopt();
+        }
+
+        @Override
+        public void write(int dest, int value)
+        {
+            write_to_reg((byte)dest, (char)value);
+            checkDeopt();
+        }
+
+        @Override
+        public void inc(int source, boolean signed)
+        {
+            instruction_inc((byte)source, signed);
+        }
+
+        @Override
+        public void dec(int source, boolean signed)
+        {
+            instruction_dec((byte)source, signed);
+        }
+
+        @Override
+        public void add(int source, int source_two, boolean signed)
+        {
+            instruction_add((byte)source, (byte)source_two, signed);
+        }
+
+        @Override
+        public void sub(int source, int source_two, boolean signed)
+        {
+            instruction_sub((byte)source, (byte)source_two, signed);
+        }
+
+        @Override
+        public void mul(int source, int source_two, boolean signed)
+        {
+            instruction_mul((byte)source, (byte)source_two, signed);
+        }
+
+        @Override
+        public void div(int source, int source_two, boolean signed)
+        {
+            instruction_div((byte)source, (byte)source_two, signed);
+        }
+
+        @Override
+        public void and(int source, int source_two)
+        {
+            instruction_and((byte)source, (byte)source_two);
+        }
+
+        @Override
+        public void or(int source, int source_two)
+        {
+            instruction_or((byte)source, (byte)source_two);
+        }
+
+        @Override
+        public void not(int source)
+        {
+            instruction_not((byte)source);
+        }
+
+        @Override
+        public void neg(int source)
+        {
+            instruction_neg((byte)source);
+        }
+
+        @Override
+        public void bsl(int source)
+        {
+            instruction_bsl((byte)source);
+        }
+
+        @Override
+        public void bsr(int source)
+        {
+            instruction_bsr((byte)source);
+        }
+
+        @Override
+        public void fnc()
+        {
+            instruction_fnc();
+        }
+
+        @Override
+        public boolean fnr()
+        {
+            return !instruction_fnr() && PyCPU.this.branch(JUMP_JUMP);
+        }
+
+        @Override
+        public boolean branch(int jump)
+        {
+            return PyCPU.this.branch(jump);
+        }
+
+        private void checkDeopt()
+        {
+            if ( deopt )
+            {
+                throw Deoptimize.INSTANCE;
+            }
         }
     }
 
     @Override
     public String toString() {
         return "pycpu{" +
-                "RegJump=0x" + Integer.toUnsignedString((((int)RegJump) & 0x0000FFFF),16) +
-                ", RegMemAdd=0x" + Integer.toUnsignedString((((int)RegMemAdd) & 0x0000FFFF),16) +
-                ", RegMemData=0x" + Integer.toUnsignedString((((int)RegMemData) & 0x0000FFFF),16) +
+                "RegJump=0x" + Integer.toUnsignedString((((int)Regs[REG_JUMP]) & 0x0000FFFF),16) +
+                ", RegMemAdd=0x" + Integer.toUnsignedString((((int)Regs[REG_MEMADD]) & 0x0000FFFF),16) +
+                ", RegMemData=0x" + Integer.toUnsignedString((((int)Regs[REG_MEMDATA]) & 0x0000FFFF),16) +
                 ", RegInst=0x" + Integer.toUnsignedString((((int)RegInst) & 0x0000FFFF),16) +
-                ", RegPC=0x" + Integer.toUnsignedString((((int)RegPC) & 0x0000FFFF),16) +
-                ", RegStack=0x" + Integer.toUnsignedString((((int)RegStack) & 0x0000FFFF),16) +
-                ", RegALU=0x" + Integer.toUnsignedString((((int)RegALU) & 0x0000FFFF),16) +
-                ", RegFlags=0x" + Integer.toUnsignedString((((int)RegFlags) & 0x0000FFFF),16) +
-                ", RegGp=" + Arrays.toString(RegGp) +
+                ", RegPC=0x" + Integer.toUnsignedString((((int)Regs[REG_PC]) & 0x0000FFFF),16) +
+                ", RegStack=0x" + Integer.toUnsignedString((((int)Regs[REG_STACK]) & 0x0000FFFF),16) +
+                ", RegALU=0x" + Integer.toUnsignedString((((int)Regs[REG_ALU]) & 0x0000FFFF),16) +
+                ", RegFlags=0x" + Integer.toUnsignedString((((int)Regs[REG_FLAGS]) & 0x0000FFFF),16) +
+                ", RegGp=" + Arrays.toString(Arrays.copyOfRange(Regs, REG_GP0, REG_GP7 + 1)) +
                 '}';
     }
 
     private void updateMemoryAddress()
     {
-        if ( RegMemAdd > ramBlock.getBaseAddress() &
-                RegMemAdd < (ramBlock.getBaseAddress() + ramBlock.getSize()) )
+        int value = dataMap.read(Regs[REG_MEMADD]);
+
+        if ( trace != null )
+        {
+            trace.memory(value != MemoryMap.UNMAPPED ? TraceRecorder.KIND_READ : TraceRecorder.KIND_READ_ERROR,
+                    Regs[REG_MEMADD], (char)value);
+        }
+
+        if ( value != MemoryMap.UNMAPPED )
         {
-            RegMemData = ramBlock.read_mem(RegMemAdd);
+            Regs[REG_MEMDATA] = (char)value;
         }
         else
         {
-            RegFlags |= FLAG_ERROR_BIT;
+            Regs[REG_FLAGS] |= FLAG_ERROR_BIT;
+            if ( perf != null )
+            {
+                perf.memoryError();
+            }
         }
     }
 
     private void writeMemoryData()
     {
-        if ( RegMemAdd > ramBlock.getBaseAddress() &
-                RegMemAdd < (ramBlock.getBaseAddress() + ramBlock.getSize()) )
+        boolean written = dataMap.write(Regs[REG_MEMADD], Regs[REG_MEMDATA]);
+
+        if ( trace != null )
         {
-            ramBlock.write_mem(RegMemAdd, RegMemData);
+            trace.memory(written ? TraceRecorder.KIND_WRITE : TraceRecorder.KIND_WRITE_ERROR,
+                    Regs[REG_MEMADD], Regs[REG_MEMDATA]);
         }
-        else
+
+        if ( !written )
         {
-            RegFlags |= FLAG_ERROR_BIT;
+            Regs[REG_FLAGS] |= FLAG_ERROR_BIT;
+            if ( perf != null )
+            {
+                perf.memoryError();
+            }
         }
 
     }
@@ -1,14 +1,17 @@
 package com.realityshards.pycpu;
 
+import com.realityshards.pycpu.interfaces.i_pyarray;
 import com.realityshards.pycpu.interfaces.i_pybus;
+import com.realityshards.pycpu.interfaces.i_pydirty;
 
 import java.util.Arrays;
 
-public class RamBlock implements i_pybus
+public class RamBlock implements i_pyarray, i_pydirty
 {
     char BaseAddress = 0;
     int Size;
     char[] RamData;
+    final DirtyPages Dirty = new DirtyPages();
 
     public RamBlock (int baseAddress, int size)
     {
@@ -29,6 +32,12 @@ public class RamBlock implements i_pybus
         return BaseAddress;
     }
 
+    @Override
+    public char[] getData ()
+    {
+        return RamData;
+    }
+
     @Override
     public char read_mem (char address)
     {
@@ -47,6 +56,7 @@ public class RamBlock implements i_pybus
 
         if (address >= BaseAddress & address < (BaseAddress + Size)) {
             RamData[address - BaseAddress] = value;
+            Dirty.mark(address);
             retVal = true;
         }
 
@@ -57,6 +67,19 @@ public class RamBlock implements i_pybus
     public boolean init ()
     {
         Arrays.fill(RamData, (char)0);
+        Dirty.mark(BaseAddress, BaseAddress + Size);
         return true;
     }
+
+    @Override
+    public boolean isDirty (int page)
+    {
+        return Dirty.isDirty(page);
+    }
+
+    @Override
+    public void clearDirty ()
+    {
+        Dirty.clear();
+    }
 }
@@ -0,0 +1,42 @@
+package com.realityshards.pycpu;
+
+// A loaded ROM image, shared read only by every ROM loaded from the same
+// content. See RomImageRegistry.
+//
+// The word array is padded with zeros to the capacity of the ROM it was
+// loaded for, so it can back the ROM's whole address range directly.
+public final class RomImage
+{
+    final char[] words;         // Never written after the image is built
+    private final int length;
+    private final long hash;
+
+    RomImage(char[] words, int length, long hash)
+    {
+        this.words = words;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    // Words loaded from the file
+    public int getLength()
+    {
+        return length;
+    }
+
+    public int getCapacity()
+    {
+        return words.length;
+    }
+
+    public char read(int offset)
+    {
+        return words[offset];
+    }
+
+    // CRC32 of the file contents
+    public long getHash()
+    {
+        return hash;
+    }
+}
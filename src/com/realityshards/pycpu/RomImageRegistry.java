@@ -0,0 +1,158 @@
+package com.realityshards.pycpu;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+// Loads each distinct ROM image once and hands the same RomImage to every
+// ROM that loads it.
+//
+// Images are looked up by file path and content hash. When a path is
+// loaded again and the file's size and modification time are unchanged,
+// the image is returned without reading the file. Otherwise the file is
+// read and hashed. If another image has the same content, that image is
+// shared, so a changed file or a copy under another name still gets one
+// image.
+//
+// Images are only held weakly, an image nobody uses any more is collected.
+public class RomImageRegistry
+{
+    private static final RomImageRegistry SHARED = new RomImageRegistry();
+
+    private static final class ImageRef extends WeakReference<RomImage>
+    {
+        final String key;
+
+        ImageRef(RomImage image, String key, ReferenceQueue<RomImage> queue)
+        {
+            super(image, queue);
+            this.key = key;
+        }
+    }
+
+    private static final class Stamp
+    {
+        final long modified;
+        final long size;
+        final ImageRef image;
+
+        Stamp(long modified, long size, ImageRef image)
+        {
+            this.modified = modified;
+            this.size = size;
+            this.image = image;
+        }
+    }
+
+    private final HashMap<String, ImageRef> images = new HashMap<String, ImageRef>();   // content hash, size, capacity
+    private final HashMap<String, Stamp> stamps = new HashMap<String, Stamp>();         // path, capacity
+    private final HashMap<Integer, RomImage> blanks = new HashMap<Integer, RomImage>();
+    private final ReferenceQueue<RomImage> collected = new ReferenceQueue<RomImage>();
+
+    // The registry used by ROMs that aren't given one.
+    public static RomImageRegistry shared()
+    {
+        return SHARED;
+    }
+
+    // Returns the image of file for a ROM of capacity words, or null if the
+    // file is missing, truncated or bigger than the ROM.
+    public synchronized RomImage load(File file, int capacity)
+    {
+        expunge();
+
+        String stampKey = file.getAbsolutePath() + '|' + capacity;
+        long modified = file.lastModified();
+        long size = file.length();
+        Stamp stamp = stamps.get(stampKey);
+
+        if ( stamp != null && stamp.modified == modified && stamp.size == size )
+        {
+            RomImage image = stamp.image.get();
+            if ( image != null )
+            {
+                return image;
+            }
+        }
+
+        ByteBuffer bytes = RomLoader.read(file, capacity);
+
+        if ( bytes == null )
+        {
+            stamps.remove(stampKey);
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.duplicate());
+
+        String imageKey = Long.toHexString(crc.getValue()) + '|' + bytes.remaining() + '|' + capacity;
+        CharBuffer content = bytes.order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+        ImageRef ref = images.get(imageKey);
+        RomImage image = ref == null ? null : ref.get();
+
+        // Same hash is not proof of the same content, check before sharing.
+        if ( image == null || !content.equals(CharBuffer.wrap(image.words, 0, image.getLength())) )
+        {
+            char[] words = new char[capacity];
+            int length = content.remaining();
+
+            content.get(words, 0, length);
+            image = new RomImage(words, length, crc.getValue());
+            ref = new ImageRef(image, imageKey, collected);
+            images.put(imageKey, ref);
+        }
+
+        stamps.put(stampKey, new Stamp(modified, size, ref));
+
+        return image;
+    }
+
+    // An all zero image, what a ROM holds before anything is loaded.
+    public synchronized RomImage blank(int capacity)
+    {
+        RomImage image = blanks.get(capacity);
+
+        if ( image == null )
+        {
+            image = new RomImage(new char[capacity], 0, 0);
+            blanks.put(capacity, image);
+        }
+        return image;
+    }
+
+    // Forgets what is known about file, the next load reads it again.
+    // Called after writing a ROM image out.
+    public synchronized void invalidate(File file)
+    {
+        String prefix = file.getAbsolutePath() + '|';
+
+        stamps.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    // Images currently loaded
+    public synchronized int size()
+    {
+        expunge();
+        return images.size();
+    }
+
+    private void expunge()
+    {
+        ImageRef ref;
+
+        while ( ( ref = (ImageRef)collected.poll() ) != null )
+        {
+            // The key may have been taken over by a newer image already.
+            if ( images.get(ref.key) == ref )
+            {
+                images.remove(ref.key);
+            }
+        }
+    }
+}
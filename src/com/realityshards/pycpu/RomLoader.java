@@ -0,0 +1,62 @@
+package com.realityshards.pycpu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Loads ROM images.
+//
+// An image is a sequence of little endian 16 bit words, so value 0x1234 is
+// stored 3412. The file is read with one bulk read, RomImageRegistry decodes
+// it in one pass through a little endian CharBuffer view.
+class RomLoader
+{
+    // Reads the whole file, or returns null if it is not a valid image of at
+    // most maxWords words.
+    static ByteBuffer read(File file, int maxWords)
+    {
+        if ( !file.isFile() )
+        {
+            return null;
+        }
+
+        try
+        {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            try
+            {
+                long size = channel.size();
+
+                if ( ( size & 1 ) != 0 || size > (long)maxWords * 2 )
+                {
+                    return null;
+                }
+
+                ByteBuffer bytes = ByteBuffer.allocate((int)size);
+
+                while ( bytes.hasRemaining() )
+                {
+                    if ( channel.read(bytes) < 0 )
+                    {
+                        // File shrunk while we were reading it
+                        return null;
+                    }
+                }
+                bytes.flip();
+
+                return bytes;
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch ( IOException ex )
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pydirty;
+import com.realityshards.pycpu.interfaces.i_pymemory;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+// RAM shared by the cores of a MultiCore.
+//
+// Every 256 word page is guarded by one of STRIPES locks, so cores working
+// on different pages don't contend. Loads are optimistic reads that only
+// take the read lock if a store to the stripe raced with them, stores and
+// the atomic operations take the write lock. A load is an acquire and a
+// store a release: a core that sees a store also sees every store the
+// storing core made before it. The atomic operations are both.
+//
+// It is not an i_pyarray on purpose, every access has to go through the
+// locks.
+public class SharedRamBlock implements i_pymemory, i_pydirty
+{
+    public static final int PAGE_BITS = 8;
+    private static final int STRIPES = 64;
+
+    private final char BaseAddress;
+    private final int Size;
+    private final char[] RamData;
+    private final StampedLock[] Stripes = new StampedLock[STRIPES];
+    private final DirtyPages Dirty = new DirtyPages();
+
+    public SharedRamBlock (int baseAddress, int size)
+    {
+        BaseAddress = (char)baseAddress;
+        Size = size;
+        RamData = new char[size];
+        for ( int i = 0; i < STRIPES; i++ )
+        {
+            Stripes[i] = new StampedLock();
+        }
+    }
+
+    @Override
+    public int getSize ()
+    {
+        return Size;
+    }
+
+    @Override
+    public char getBaseAddress ()
+    {
+        return BaseAddress;
+    }
+
+    @Override
+    public char read_mem (char address)
+    {
+        int val = 0;
+
+        if (address >= BaseAddress & address < (BaseAddress + Size)) {
+            val = address - BaseAddress;
+        }
+
+        StampedLock lock = stripe(val);
+        long stamp = lock.tryOptimisticRead();
+        char value = RamData[val];
+
+        if ( !lock.validate(stamp) )
+        {
+            stamp = lock.readLock();
+            try
+            {
+                value = RamData[val];
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public boolean write_mem (char address, char value)
+    {
+        boolean retVal = false;
+
+        if (address >= BaseAddress & address < (BaseAddress + Size)) {
+            int offset = address - BaseAddress;
+            StampedLock lock = stripe(offset);
+            long stamp = lock.writeLock();
+
+            try
+            {
+                RamData[offset] = value;
+            }
+            finally
+            {
+                lock.unlockWrite(stamp);
+            }
+            Dirty.mark(address);
+            retVal = true;
+        }
+
+        return retVal;
+    }
+
+    // Only call while no core is running.
+    @Override
+    public boolean init ()
+    {
+        Arrays.fill(RamData, (char)0);
+        Dirty.mark(BaseAddress, BaseAddress + Size);
+        return true;
+    }
+
+    @Override
+    public boolean isDirty (int page)
+    {
+        return Dirty.isDirty(page);
+    }
+
+    // Only call while no core is running.
+    @Override
+    public void clearDirty ()
+    {
+        Dirty.clear();
+    }
+
+    // Atomic operations, used by AtomicUnit. Each returns the old value, or
+    // 0 without changing anything if address is outside the RAM.
+
+    // Stores update if the word holds expect.
+    public char compareAndSwap (char address, char expect, char update)
+    {
+        if ( !contains(address) )
+        {
+            return 0;
+        }
+
+        int offset = address - BaseAddress;
+        StampedLock lock = stripe(offset);
+        long stamp = lock.writeLock();
+
+        try
+        {
+            char old = RamData[offset];
+            if ( old == expect )
+            {
+                RamData[offset] = update;
+                Dirty.mark(address);
+            }
+            return old;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public char getAndSet (char address, char value)
+    {
+        if ( !contains(address) )
+        {
+            return 0;
+        }
+
+        int offset = address - BaseAddress;
+        StampedLock lock = stripe(offset);
+        long stamp = lock.writeLock();
+
+        try
+        {
+            char old = RamData[offset];
+            RamData[offset] = value;
+            Dirty.mark(address);
+            return old;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public char getAndAdd (char address, char delta)
+    {
+        if ( !contains(address) )
+        {
+            return 0;
+        }
+
+        int offset = address - BaseAddress;
+        StampedLock lock = stripe(offset);
+        long stamp = lock.writeLock();
+
+        try
+        {
+            char old = RamData[offset];
+            RamData[offset] = (char)(old + delta);
+            Dirty.mark(address);
+            return old;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean contains (char address)
+    {
+        return address >= BaseAddress && address < BaseAddress + Size;
+    }
+
+    private StampedLock stripe (int offset)
+    {
+        return Stripes[(offset >> PAGE_BITS) & (STRIPES - 1)];
+    }
+}
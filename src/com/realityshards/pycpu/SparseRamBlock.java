@@ -0,0 +1,118 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pybus;
+import com.realityshards.pycpu.interfaces.i_pydirty;
+import com.realityshards.pycpu.interfaces.i_pymemory;
+
+import java.util.Arrays;
+
+// RAM that only holds the pages a program has written to.
+//
+// Every page starts out as one shared page of zeros, a page of its own is
+// allocated on the first write of a non zero value to it. init() drops all
+// pages instead of clearing them, so an idle or freshly reset CPU holds a
+// few hundred bytes of page table instead of its whole RAM.
+//
+// Like DirectRamBlock it is reached through read_mem/write_mem, loads and
+// stores cost more than with RamBlock.
+public class SparseRamBlock implements i_pymemory, i_pydirty
+{
+    public static final int PAGE_BITS = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Shared by every SparseRamBlock, never written
+    private static final char[] ZERO_PAGE = new char[PAGE_SIZE];
+
+    private final char BaseAddress;
+    private final int Size;
+    private final char[][] Pages;
+    private int resident = 0;
+    private final DirtyPages Dirty = new DirtyPages();
+
+    public SparseRamBlock (int baseAddress, int size)
+    {
+        BaseAddress = (char)baseAddress;
+        Size = size;
+        Pages = new char[(size + PAGE_MASK) >> PAGE_BITS][];
+        Arrays.fill(Pages, ZERO_PAGE);
+    }
+
+    @Override
+    public int getSize ()
+    {
+        return Size;
+    }
+
+    @Override
+    public char getBaseAddress ()
+    {
+        return BaseAddress;
+    }
+
+    @Override
+    public char read_mem (char address)
+    {
+        int val = 0;
+
+        if (address >= BaseAddress & address < (BaseAddress + Size)) {
+            val = address - BaseAddress;
+        }
+        return Pages[val >> PAGE_BITS][val & PAGE_MASK];
+    }
+
+    @Override
+    public boolean write_mem (char address, char value)
+    {
+        boolean retVal = false;
+
+        if (address >= BaseAddress & address < (BaseAddress + Size)) {
+            int offset = address - BaseAddress;
+            char[] page = Pages[offset >> PAGE_BITS];
+
+            if ( page == ZERO_PAGE )
+            {
+                if ( value == 0 )
+                {
+                    // Already reads as zero, don't allocate for it
+                    return true;
+                }
+                page = new char[PAGE_SIZE];
+                Pages[offset >> PAGE_BITS] = page;
+                resident++;
+            }
+            page[offset & PAGE_MASK] = value;
+            Dirty.mark(address);
+            retVal = true;
+        }
+
+        return retVal;
+    }
+
+    @Override
+    public boolean init ()
+    {
+        Arrays.fill(Pages, ZERO_PAGE);
+        resident = 0;
+        Dirty.mark(BaseAddress, BaseAddress + Size);
+        return true;
+    }
+
+    @Override
+    public boolean isDirty (int page)
+    {
+        return Dirty.isDirty(page);
+    }
+
+    @Override
+    public void clearDirty ()
+    {
+        Dirty.clear();
+    }
+
+    // Pages allocated, each holds PAGE_SIZE words
+    public int residentPages ()
+    {
+        return resident;
+    }
+}
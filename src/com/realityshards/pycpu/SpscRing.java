@@ -0,0 +1,118 @@
+package com.realityshards.pycpu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+// Bounded lock free queue of longs for exactly one producer thread and one
+// consumer thread.
+//
+// Each side only writes its own index and publishes it with lazySet (a
+// store-store barrier, no full fence). The other side's index is cached and
+// only re-read when the cached value says the ring is full (or empty), so an
+// offer or poll normally touches no shared cache line but the slot itself.
+public final class SpscRing
+{
+    private final long[] buffer;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();  // Next slot to read, written by the consumer
+    private final AtomicLong tail = new AtomicLong();  // Next slot to write, written by the producer
+
+    private long headCache = 0;     // Producer's last view of head
+    private long tailCache = 0;     // Consumer's last view of tail
+
+    // capacity is rounded up to a power of two.
+    public SpscRing (int capacity)
+    {
+        if ( capacity < 1 || capacity > (1 << 30) )
+        {
+            throw new IllegalArgumentException("Bad ring capacity " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if ( size < capacity )
+        {
+            size <<= 1;
+        }
+        buffer = new long[size];
+        mask = size - 1;
+    }
+
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+    // Producer only. Returns false, without waiting, if the ring is full.
+    public boolean offer(long value)
+    {
+        long t = tail.get();
+
+        if ( t - headCache == buffer.length )
+        {
+            headCache = head.get();
+            if ( t - headCache == buffer.length )
+            {
+                return false;
+            }
+        }
+
+        buffer[(int)t & mask] = value;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Consumer only. Hands every queued value to sink, oldest first, and
+    // frees their slots in one go. Returns how many were drained.
+    public int drain(LongConsumer sink)
+    {
+        long h = head.get();
+        long t = tail.get();
+
+        tailCache = t;
+        for ( long i = h; i < t; i++ )
+        {
+            sink.accept(buffer[(int)i & mask]);
+        }
+        head.lazySet(t);
+
+        return (int)(t - h);
+    }
+
+    // Consumer only. Copies up to max queued values in to dest.
+    public int drainTo(long[] dest, int offset, int max)
+    {
+        long h = head.get();
+        long t = tail.get();
+        int count = (int)Math.min(t - h, max);
+
+        tailCache = t;
+        for ( int i = 0; i < count; i++ )
+        {
+            dest[offset + i] = buffer[(int)(h + i) & mask];
+        }
+        head.lazySet(h + count);
+
+        return count;
+    }
+
+    // Consumer only. Cheap check before a drain, only reads tail when the
+    // last view of it says the ring is empty.
+    public boolean isEmpty()
+    {
+        long h = head.get();
+
+        if ( tailCache != h )
+        {
+            return false;
+        }
+        tailCache = tail.get();
+        return tailCache == h;
+    }
+
+    // Values queued, exact only when neither side is running.
+    public int size()
+    {
+        return (int)(tail.get() - head.get());
+    }
+}
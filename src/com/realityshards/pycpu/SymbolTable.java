@@ -0,0 +1,118 @@
+package com.realityshards.pycpu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Names for code addresses, used by GuestProfiler.
+//
+// A symbol covers the code from its address up to the next symbol, so an
+// address is named after the closest symbol at or below it. A symbol file
+// has one symbol per line, a hex address then the name:
+//
+//   0000 boot
+//   4000 main
+//   4020 draw_sprite    # comments and blank lines are skipped
+//
+// Not thread safe while symbols are added, lookups from any number of
+// threads are fine once it is filled.
+public class SymbolTable
+{
+    private final TreeMap<Integer, String> symbols = new TreeMap<Integer, String>();
+
+    public static SymbolTable load (File file) throws IOException
+    {
+        SymbolTable table = new SymbolTable();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+
+        try
+        {
+            String line;
+            int lineNumber = 0;
+
+            while ( (line = in.readLine()) != null )
+            {
+                lineNumber++;
+
+                int comment = line.indexOf('#');
+                if ( comment >= 0 )
+                {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if ( line.isEmpty() )
+                {
+                    continue;
+                }
+
+                String[] fields = line.split("\\s+", 2);
+                String address = fields[0].startsWith("0x") || fields[0].startsWith("0X") ? fields[0].substring(2) : fields[0];
+
+                try
+                {
+                    int value = Integer.parseInt(address, 16);
+
+                    if ( fields.length < 2 || value < 0 || value > 0xFFFF )
+                    {
+                        throw new NumberFormatException();
+                    }
+                    table.add(value, fields[1]);
+                }
+                catch ( NumberFormatException ex )
+                {
+                    throw new IOException(file + ":" + lineNumber + ": expected a 16 bit hex address and a name");
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return table;
+    }
+
+    public void add (int address, String name)
+    {
+        symbols.put(address & 0xFFFF, name);
+    }
+
+    public int size ()
+    {
+        return symbols.size();
+    }
+
+    // Name of the symbol covering address, or the address in hex if there
+    // is none.
+    public String name (int address)
+    {
+        Map.Entry<Integer, String> symbol = symbols.floorEntry(address);
+
+        return symbol != null ? symbol.getValue() : hex(address);
+    }
+
+    // Like name, with the offset from the symbol when it isn't 0, such as
+    // draw_sprite+0x12.
+    public String describe (int address)
+    {
+        Map.Entry<Integer, String> symbol = symbols.floorEntry(address);
+
+        if ( symbol == null )
+        {
+            return hex(address);
+        }
+
+        int offset = address - symbol.getKey();
+        return offset == 0 ? symbol.getValue() : symbol.getValue() + "+0x" + Integer.toHexString(offset);
+    }
+
+    static String hex (int address)
+    {
+        return String.format("0x%04x", address);
+    }
+}
@@ -0,0 +1,188 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pywatcher;
+
+import java.util.Arrays;
+
+// Per CPU cache of pre-bound instruction handlers, keyed by address.
+//
+// Each instruction word is turned in to a handler once, a lambda for its
+// opcode with the operand registers, jump condition and SETVAL immediate
+// already bound. Running code is then a loop of handler calls with no
+// decode or switch, see PyCPU.runThreaded. Handlers go through BlockOps
+// like compiled blocks, so flags, memory and stack behaviour is exactly
+// the interpreter's.
+//
+// Pages are allocated on first use like DecodeCache. A write in to the code
+// drops the handlers of the words written and of a SETVAL just before them,
+// whose immediate may have changed.
+class ThreadedCode implements i_pywatcher
+{
+    static final int PAGE_BITS = 8;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+    static final int PAGE_COUNT = 0x10000 >> PAGE_BITS;
+
+    private final CompiledBlock[][] pages = new CompiledBlock[PAGE_COUNT][];
+    private final byte[][] ops = new byte[PAGE_COUNT][];   // INST_* of each handler, for PerfCounters
+
+    CompiledBlock get(char address)
+    {
+        CompiledBlock[] page = pages[address >> PAGE_BITS];
+
+        return page == null ? null : page[address & PAGE_MASK];
+    }
+
+    int op(char address)
+    {
+        return ops[address >> PAGE_BITS][address & PAGE_MASK];
+    }
+
+    // Returns the handler for the instruction at address, binding it if
+    // this address has not been seen yet. Null if there is no mapped code
+    // there or the SETVAL immediate isn't mapped, the interpreter deals
+    // with those.
+    CompiledBlock build(MemoryMap code, char address)
+    {
+        int word = code.read(address);
+
+        if ( word == MemoryMap.UNMAPPED )
+        {
+            return null;
+        }
+
+        int entry = DecodeCache.decode((char)word);
+        char immediate = 0;
+
+        if ( ( entry & DecodeCache.IMMEDIATE_BIT ) != 0 )
+        {
+            int value = address < 0xFFFF ? code.read((char)(address + 1)) : MemoryMap.UNMAPPED;
+
+            if ( value == MemoryMap.UNMAPPED )
+            {
+                return null;
+            }
+            immediate = (char)value;
+        }
+
+        int page = address >> PAGE_BITS;
+        if ( pages[page] == null )
+        {
+            pages[page] = new CompiledBlock[PAGE_SIZE];
+            ops[page] = new byte[PAGE_SIZE];
+        }
+
+        CompiledBlock handler = bind(entry, address, immediate);
+        pages[page][address & PAGE_MASK] = handler;
+        ops[page][address & PAGE_MASK] = (byte)DecodeCache.op(entry);
+        return handler;
+    }
+
+    void invalidate(int address, int length)
+    {
+        int end = Math.min(address + length, 0x10000);
+
+        for ( int addr = Math.max(address - 1, 0); addr < end; )
+        {
+            CompiledBlock[] page = pages[addr >> PAGE_BITS];
+            int pageEnd = Math.min((addr | PAGE_MASK) + 1, end);
+
+            if ( page != null )
+            {
+                Arrays.fill(page, addr & PAGE_MASK, ((pageEnd - 1) & PAGE_MASK) + 1, null);
+            }
+            addr = pageEnd;
+        }
+    }
+
+    void clear()
+    {
+        Arrays.fill(pages, null);
+        Arrays.fill(ops, null);
+    }
+
+    @Override
+    public void mem_changed(char address, int length)
+    {
+        invalidate(address, length);
+    }
+
+    private static CompiledBlock bind(int entry, char address, char immediate)
+    {
+        final int source = DecodeCache.source(entry);
+        final int dest = DecodeCache.dest(entry);
+        final int jump = ( entry & DecodeCache.ALWAYS_JUMP_BIT ) != 0 ? PyCPU.JUMP_JUMP : DecodeCache.jump(entry);
+        final boolean direct = ( PyCPU.REG_WRITE_SLOW_MASK & (1 << dest) ) == 0;
+
+        switch ( DecodeCache.op(entry) )
+        {
+            case PyCPU.INST_COPY:
+                if ( direct && source != PyCPU.REG_FLAGS )
+                {
+                    return (ops, regs) -> { regs[dest] = regs[source]; return ops.branch(jump); };
+                }
+                return (ops, regs) -> { ops.copy(source, dest); return ops.branch(jump); };
+            case PyCPU.INST_SET0:
+                return (ops, regs) -> { ops.set(dest, 0); return ops.branch(jump); };
+            case PyCPU.INST_SET1:
+                return (ops, regs) -> { ops.set(dest, 1); return ops.branch(jump); };
+            case PyCPU.INST_SETN1:
+                return (ops, regs) -> { ops.set(dest, -1); return ops.branch(jump); };
+            case PyCPU.INST_UINC:
+                return (ops, regs) -> { ops.inc(source, false); return ops.branch(jump); };
+            case PyCPU.INST_SINC:
+                return (ops, regs) -> { ops.inc(source, true); return ops.branch(jump); };
+            case PyCPU.INST_UDEC:
+                return (ops, regs) -> { ops.dec(source, false); return ops.branch(jump); };
+            case PyCPU.INST_SDEC:
+                return (ops, regs) -> { ops.dec(source, true); return ops.branch(jump); };
+            case PyCPU.INST_UADD:
+                return (ops, regs) -> { ops.add(source, dest, false); return ops.branch(jump); };
+            case PyCPU.INST_SADD:
+                return (ops, regs) -> { ops.add(source, dest, true); return ops.branch(jump); };
+            case PyCPU.INST_USUB:
+                return (ops, regs) -> { ops.sub(source, dest, false); return ops.branch(jump); };
+            case PyCPU.INST_SSUB:
+                return (ops, regs) -> { ops.sub(source, dest, true); return ops.branch(jump); };
+            case PyCPU.INST_UMUL:
+                return (ops, regs) -> { ops.mul(source, dest, false); return ops.branch(jump); };
+            case PyCPU.INST_SMUL:
+                return (ops, regs) -> { ops.mul(source, dest, true); return ops.branch(jump); };
+            case PyCPU.INST_UDIV:
+                return (ops, regs) -> { ops.div(source, dest, false); return ops.branch(jump); };
+            case PyCPU.INST_SDIV:
+                return (ops, regs) -> { ops.div(source, dest, true); return ops.branch(jump); };
+            case PyCPU.INST_AND:
+                return (ops, regs) -> { ops.and(source, dest); return ops.branch(jump); };
+            case PyCPU.INST_OR:
+                return (ops, regs) -> { ops.or(source, dest); return ops.branch(jump); };
+            case PyCPU.INST_NOT:
+                return (ops, regs) -> { ops.not(source); return ops.branch(jump); };
+            case PyCPU.INST_NEG:
+                return (ops, regs) -> { ops.neg(source); return ops.branch(jump); };
+            case PyCPU.INST_BSL:
+                return (ops, regs) -> { ops.bsl(source); return ops.branch(jump); };
+            case PyCPU.INST_BSR:
+                return (ops, regs) -> { ops.bsr(source); return ops.branch(jump); };
+            case PyCPU.INST_SETVAL:
+            {
+                // After a SETVAL the PC points at its immediate word.
+                final char pc = (char)(address + 1);
+                final char value = immediate;
+
+                if ( direct )
+                {
+                    return (ops, regs) -> { regs[PyCPU.REG_PC] = pc; regs[dest] = value; return ops.branch(jump); };
+                }
+                return (ops, regs) -> { regs[PyCPU.REG_PC] = pc; ops.write(dest, value); return ops.branch(jump); };
+            }
+            case PyCPU.INST_FNC:
+                return (ops, regs) -> { ops.fnc(); return ops.branch(jump); };
+            case PyCPU.INST_FNR:
+                return (ops, regs) -> ops.fnr();
+            default:
+                // Unused opcodes do nothing
+                return (ops, regs) -> ops.branch(jump);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.realityshards.pycpu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+// Turns a TraceRecorder dump in to text, one line per record:
+//
+//   sequence  PC  instruction word  disassembly  result register  FLAGS  memory access
+//
+// Run it as TraceDecoder <dump> to print a dump.
+public class TraceDecoder
+{
+    public static void main (String[] args) throws IOException
+    {
+        if ( args.length != 1 )
+        {
+            System.err.println("usage: TraceDecoder <trace dump>");
+            System.exit(2);
+        }
+        decode(new File(args[0]), System.out);
+    }
+
+    public static void decode (File dump, PrintStream out) throws IOException
+    {
+        // Only 16 bytes per record, reading it whole is fine.
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(dump.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+
+        if ( in.remaining() < TraceRecorder.HEADER_SIZE )
+        {
+            throw new IOException("Can't read trace " + dump);
+        }
+
+        if ( in.getInt() != TraceRecorder.MAGIC )
+        {
+            throw new IOException(dump + " is not a trace dump");
+        }
+        int version = in.getInt();
+        if ( version != TraceRecorder.VERSION )
+        {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        int capacity = in.getInt();
+        int count = in.getInt();
+        long recorded = in.getLong();
+        long sequence = in.getLong();
+
+        out.println("# " + count + " of " + recorded + " records, ring of " + capacity);
+        for ( int i = 0; i < count && in.remaining() >= 16; i++ )
+        {
+            long word0 = in.getLong();
+            long word1 = in.getLong();
+
+            out.println(format(sequence, word0, word1));
+            sequence += TraceRecorder.cycles(word0, word1);
+        }
+    }
+
+    public static String format (long sequence, long word0, long word1)
+    {
+        int kind = TraceRecorder.kind(word1);
+
+        if ( kind == TraceRecorder.KIND_IDLE )
+        {
+            return String.format("%10d  idle loop, skipped %d cycles", sequence, word0);
+        }
+
+        char pc = (char)(word0 >>> 48);
+        char inst = (char)(word0 >>> 32);
+        char result = (char)(word0 >>> 16);
+        char flags = (char)word0;
+        int op = (inst >> 11) & 0x1F;
+        int jump = (inst >> 8) & 0x7;
+        int source = (inst >> 4) & 0xF;
+        int dest = inst & 0xF;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%10d  %04x  %04x  %-6s %-11s %-11s %-4s", sequence, (int)pc, (int)inst,
+                PyCPU.instructionName(op), PyCPU.registerName(source), PyCPU.registerName(dest),
+                jump == PyCPU.JUMP_NONE ? "" : PyCPU.jumpName(jump)));
+        sb.append(String.format("  %s=%04x  FLAGS=%04x", PyCPU.registerName(resultRegister(op, dest)), (int)result, (int)flags));
+
+        char address = (char)(word1 >>> 16);
+        char data = (char)word1;
+        switch ( kind )
+        {
+            case TraceRecorder.KIND_READ:
+                sb.append(String.format("  read [%04x]=%04x", (int)address, (int)data));
+                break;
+            case TraceRecorder.KIND_WRITE:
+                sb.append(String.format("  write [%04x]=%04x", (int)address, (int)data));
+                break;
+            case TraceRecorder.KIND_READ_ERROR:
+                sb.append(String.format("  read [%04x] failed", (int)address));
+                break;
+            case TraceRecorder.KIND_WRITE_ERROR:
+                sb.append(String.format("  write [%04x]=%04x failed", (int)address, (int)data));
+                break;
+            default:
+                break;
+        }
+        return sb.toString();
+    }
+
+    // The register an instruction's result is recorded from
+    static int resultRegister (int op, int dest)
+    {
+        if ( op >= PyCPU.INST_UINC && op <= PyCPU.INST_BSR )
+        {
+            return PyCPU.REG_ALU;
+        }
+        if ( op == PyCPU.INST_FNC || op == PyCPU.INST_FNR )
+        {
+            return PyCPU.REG_STACK;
+        }
+        return dest;
+    }
+}
@@ -0,0 +1,177 @@
+package com.realityshards.pycpu;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Records what a CPU executed in a ring of fixed size records, see
+// PyCPU.setTraceRecorder. Once the ring is full the oldest records are
+// overwritten, so a dump holds the last getCapacity() instructions.
+//
+// A record is two longs in a preallocated long[], recording allocates
+// nothing:
+//
+//   word 0   PC (63-48), instruction (47-32), result register (31-16), FLAGS (15-0)
+//   word 1   zero (63-35), memory access kind (34-32), address (31-16), data (15-0)
+//
+// The result register is the one the instruction wrote: ALU for ALU
+// instructions, STACK for FNC and FNR, otherwise the destination. The
+// memory access is the last MEMADD read or MEMDATA write the instruction
+// made. An idle loop skip (see PyCPU.isIdle) is recorded as a KIND_IDLE
+// record with the number of skipped cycles in word 0.
+//
+// Records don't hold their sequence number (the cycle count since the
+// recorder started), it can't overflow that way. An instruction adds one
+// to it and an idle record its skipped cycles, the dump starts with the
+// sequence of its first record.
+//
+// dump() writes the records oldest first, use TraceDecoder to read it.
+// Not thread safe, dump between ticks or from the CPU's thread.
+public class TraceRecorder
+{
+    public static final int MAGIC = 0x52545950;    // "PYTR" little endian
+    public static final int VERSION = 2;
+    static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+
+    public static final int KIND_NONE = 0;
+    public static final int KIND_READ = 1;
+    public static final int KIND_WRITE = 2;
+    public static final int KIND_READ_ERROR = 3;
+    public static final int KIND_WRITE_ERROR = 4;
+    public static final int KIND_IDLE = 7;
+
+    static final int KIND_SHIFT = 32;
+
+    private final long[] ring;
+    private final int mask;
+    private long recorded = 0;          // Records written since construction or clear()
+    private long sequence = 0;          // Cycles seen, idle skips included
+    private long pendingMemory = 0;     // Memory access of the current instruction
+
+    // records is rounded up to a power of two.
+    public TraceRecorder (int records)
+    {
+        if ( records < 1 || records > (1 << 26) )
+        {
+            throw new IllegalArgumentException("Bad trace size " + records);
+        }
+
+        int size = Integer.highestOneBit(records);
+        if ( size < records )
+        {
+            size <<= 1;
+        }
+        ring = new long[size * 2];
+        mask = size - 1;
+    }
+
+    public int getCapacity ()
+    {
+        return mask + 1;
+    }
+
+    // Records written, including the ones overwritten since.
+    public long getRecorded ()
+    {
+        return recorded;
+    }
+
+    public void clear ()
+    {
+        recorded = 0;
+        sequence = 0;
+        pendingMemory = 0;
+    }
+
+    void memory (int kind, char address, char data)
+    {
+        pendingMemory = ((long)kind << KIND_SHIFT) | ((long)address << 16) | data;
+    }
+
+    void instruction (char pc, char inst, char result, char flags)
+    {
+        put(((long)pc << 48) | ((long)inst << 32) | ((long)result << 16) | flags, pendingMemory);
+        pendingMemory = 0;
+        sequence++;
+    }
+
+    void idle (int cycles)
+    {
+        put(cycles, (long)KIND_IDLE << KIND_SHIFT);
+        sequence += cycles;
+    }
+
+    private void put (long word0, long word1)
+    {
+        int slot = ((int)recorded & mask) << 1;
+
+        ring[slot] = word0;
+        ring[slot + 1] = word1;
+        recorded++;
+    }
+
+    // Writes the header (MAGIC, VERSION, capacity, record count, records
+    // written in total, sequence of the first record) and then the records,
+    // oldest first, little endian.
+    public void dump (File file) throws IOException
+    {
+        int count = (int)Math.min(recorded, getCapacity());
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + count * 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Back from the sequence the next record gets.
+        long first = sequence;
+        for ( long i = recorded - count; i < recorded; i++ )
+        {
+            first -= cycles(((int)i & mask) << 1);
+        }
+
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(getCapacity());
+        out.putInt(count);
+        out.putLong(recorded);
+        out.putLong(first);
+
+        for ( long i = recorded - count; i < recorded; i++ )
+        {
+            int slot = ((int)i & mask) << 1;
+
+            out.putLong(ring[slot]);
+            out.putLong(ring[slot + 1]);
+        }
+        out.flip();
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            while ( out.hasRemaining() )
+            {
+                channel.write(out);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    // Cycles the record at slot adds to the sequence.
+    private long cycles (int slot)
+    {
+        return cycles(ring[slot], ring[slot + 1]);
+    }
+
+    static long cycles (long word0, long word1)
+    {
+        return kind(word1) == KIND_IDLE ? word0 : 1;
+    }
+
+    static int kind (long word1)
+    {
+        return (int)(word1 >>> KIND_SHIFT) & 7;
+    }
+}
@@ -1,24 +1,53 @@
 package com.realityshards.pycpu;
 
+import com.realityshards.pycpu.interfaces.i_pyarray;
 import com.realityshards.pycpu.interfaces.i_pybus;
+import com.realityshards.pycpu.interfaces.i_pywatcher;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-public class UserRom implements i_pybus
+public class UserRom implements i_pyarray
 {
 
+    private static final int PAGE_SIZE = 256;  // Words per dirty page
+
     private char BaseAddress = 0;
     private int Size = 0;
-    private final char[] RomData;
+    private char[] RomData;
+    private RomImage Image;         // Image RomData was loaded from
+    private boolean Shared;         // RomData is Image's array, copy it before writing
     private final String Name;
+    private final RomImageRegistry Registry;
+    private final long[] dirtyPages;    // Pages written since the last load or save, see save()
+    private boolean fileInSync;         // The .dat file holds RomData but for the dirty pages
+    private IOException saveError;      // Why the last save failed, null if it didn't
+    private final CopyOnWriteArrayList<i_pywatcher> watchers = new CopyOnWriteArrayList<i_pywatcher>();
 
-
-    public UserRom (int baseAddress, int size, String name)
+    public UserRom (int baseAddress, int size, String name, RomImageRegistry registry)
     {
         BaseAddress = (char)baseAddress;
         Size = size;
-        RomData = new char[Size];
         Name = name;
+        Registry = registry;
+        Image = Registry.blank(Size);
+        RomData = Image.words;
+        Shared = true;
+        dirtyPages = new long[(pageCount() + 63) / 64];
+    }
+
+    public UserRom (int baseAddress, int size, String name)
+    {
+        this(baseAddress, size, name, RomImageRegistry.shared());
     }
 
     @Override
@@ -33,12 +62,46 @@ public class UserRom implements i_pybus
         return BaseAddress;
     }
 
+    // The array is replaced by a private copy on the first write and by
+    // init(), watchers are told when either happens. Until the first write
+    // it is shared with other ROMs and must not be written.
+    @Override
+    public char[] getData ()
+    {
+        return RomData;
+    }
+
+    public RomImage getImage ()
+    {
+        return Image;
+    }
+
+    // True once the ROM has been written since it was loaded
+    public boolean isModified ()
+    {
+        return !Shared;
+    }
+
+    // Another UserRom on the same image file and registry, holding the
+    // words this one holds now. They share the array until one of them is
+    // written, after that neither sees the other's writes. For CPUs that
+    // run the same program on threads of their own, see MultiCore.
+    public UserRom view ()
+    {
+        UserRom view = new UserRom(BaseAddress, Size, Name, Registry);
+
+        view.Image = Image;
+        view.RomData = Shared ? RomData : Arrays.copyOf(RomData, Size);
+        view.Shared = Shared;
+        return view;
+    }
+
     @Override
     public char read_mem (char address)
     {
         int val = 0;
 
-        if ( (BaseAddress + address) < (BaseAddress + Size ) )
+        if ( address >= BaseAddress & address < (BaseAddress + Size) )
         {
             val = address - BaseAddress;
         }
@@ -51,13 +114,54 @@ public class UserRom implements i_pybus
         boolean retVal = false;
 
         if (address >= BaseAddress & address < (BaseAddress + Size)) {
-            RomData[address - BaseAddress] = value;
+            if ( RomData[address - BaseAddress] != value )
+            {
+                if ( Shared )
+                {
+                    RomData = Arrays.copyOf(RomData, Size);
+                    Shared = false;
+                }
+                RomData[address - BaseAddress] = value;
+                markDirty(address - BaseAddress, 1);
+                notifyWatchers(address, 1);
+            }
             retVal = true;
         }
 
         return retVal;
     }
 
+    // Replaces the contents with the next getSize() words of source, used to
+    // restore a save state. The ROM counts as modified afterwards.
+    public void setContents (CharBuffer source)
+    {
+        char[] data = Shared ? new char[Size] : RomData;
+
+        source.get(data, 0, Size);
+        RomData = data;
+        Shared = false;
+        markDirty(0, Size);
+        notifyWatchers(BaseAddress, Size);
+    }
+
+    public void addWatcher (i_pywatcher watcher)
+    {
+        watchers.addIfAbsent(watcher);
+    }
+
+    public void removeWatcher (i_pywatcher watcher)
+    {
+        watchers.remove(watcher);
+    }
+
+    private void notifyWatchers (char address, int length)
+    {
+        for ( i_pywatcher watcher : watchers )
+        {
+            watcher.mem_changed(address, length);
+        }
+    }
+
     @Override
     public boolean init ()
     {
@@ -66,73 +170,189 @@ public class UserRom implements i_pybus
         File datFile = new File(Name + ".dat");
 
         if (datFile.exists()) {
-            try {
-                // create reader
-                FileInputStream fis = new FileInputStream(datFile);
-                BufferedInputStream reader = new BufferedInputStream(fis);
-
-                // read a byte at a time
-                int ch, offset = 0;
-                byte[] buff = new byte[2];
-
-                System.out.printf("Number of bytes available: %d\n", reader.available());
-
-                while ((ch = reader.read(buff, 0, 2)) != -1) {
-                    if (ch != 2) {
-                        // if we read less than 2 bytes than the dat file is corrupted.
-                        retVal = false;
-                        break;
+            // Fails if the image is truncated or bigger than the ROM
+            RomImage image = Registry.load(datFile, Size);
+
+            if ( image != null )
+            {
+                Image = image;
+                RomData = image.words;
+                Shared = true;
+                Arrays.fill(dirtyPages, 0);
+                // A file shorter than the ROM leaves the rest blank, it
+                // doesn't hold the blank words to write pages in to.
+                fileInSync = datFile.length() == Size * 2L;
+                retVal = true;
+
+                // The whole image may have changed under any cached decodes.
+                notifyWatchers(BaseAddress, Size);
+            }
+        }
+        return retVal;
+    }
+
+    // Writes the pages changed since the last load or save back to the
+    // image file, each run of dirty pages with one positional write. Does a
+    // full saveAtomic() unless the file is the full size image this ROM was
+    // loaded from or last saved to, such as when init() was never called or
+    // didn't take the file. Returns false if the save failed, see
+    // getSaveError.
+    public boolean save ()
+    {
+        boolean retVal = true;
+
+        File datFile = new File(Name + ".dat");
+
+        if ( !fileInSync || !datFile.isFile() || datFile.length() != Size * 2L )
+        {
+            return saveAtomic();
+        }
+
+        try
+        {
+            FileChannel channel = FileChannel.open(datFile.toPath(), StandardOpenOption.WRITE);
+            ByteBuffer bytes = ByteBuffer.allocate(PAGE_SIZE * 2 * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+            try
+            {
+                int page = nextDirtyPage(0);
+
+                while ( page >= 0 )
+                {
+                    int end = page + 1;
+                    while ( end < pageCount() && isDirty(end) && end - page < 8 )
+                    {
+                        end++;
                     }
-                    retVal = true;
-                    // Little endian, so value 0x1234 is stored 3412
-                    char v1 = (char) (0x00FF & buff[1]);
-                    char v2 = (char) (0x00FF & buff[0]);
-                    char rval = (char) ((v1 << 8) | v2);
-                    RomData[offset] = rval;
-                    offset++;
-                    if (offset > Size) {
-                        break;
+
+                    int from = page * PAGE_SIZE;
+                    int to = Math.min(end * PAGE_SIZE, Size);
+
+                    bytes.clear();
+                    bytes.asCharBuffer().put(RomData, from, to - from);
+                    bytes.limit((to - from) * 2);
+
+                    long position = from * 2L;
+                    while ( bytes.hasRemaining() )
+                    {
+                        position += channel.write(bytes, position);
                     }
-                }
 
-                reader.close();
+                    page = nextDirtyPage(end);
+                }
             }
-            catch (IOException ex) {
-                retVal = false;
-                System.out.print(ex.getMessage());
-                ex.printStackTrace();
+            finally
+            {
+                channel.close();
             }
 
+            Arrays.fill(dirtyPages, 0);
+            saveError = null;
+
+            // Whatever the registry knew about the file is stale now.
+            Registry.invalidate(datFile);
+        }
+        catch ( IOException ex)
+        {
+            retVal = false;
+            saveError = ex;
         }
         return retVal;
     }
 
-    public boolean save ()
+    // Writes the whole ROM to a temporary file next to the image and renames
+    // it over the image, so a crash leaves either the old or the new image.
+    // Returns false if the save failed, see getSaveError.
+    public boolean saveAtomic ()
     {
         boolean retVal = true;
 
-        File datFile = new File(Name + ".dat");
+        File datFile = new File(Name + ".dat").getAbsoluteFile();
+        File tmpFile = new File(datFile.getPath() + ".tmp");
 
-        if ( datFile.canWrite() & datFile.isFile() )
+        try
         {
+            ByteBuffer bytes = ByteBuffer.allocate(Size * 2).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.asCharBuffer().put(RomData, 0, Size);
+
+            FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
             try
             {
-                FileOutputStream fos = new FileOutputStream(datFile);
-
-                for ( int i = 0; i < Size; i++)
+                while ( bytes.hasRemaining() )
                 {
-                    fos.write(RomData[i]);
+                    channel.write(bytes);
                 }
+                channel.force(true);
+            }
+            finally
+            {
+                channel.close();
+            }
 
-                fos.close();
+            try
+            {
+                Files.move(tmpFile.toPath(), datFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             }
-            catch ( IOException ex)
+            catch ( AtomicMoveNotSupportedException ex )
             {
-                retVal = false;
-                System.out.print(ex.getMessage());
-                ex.printStackTrace();
+                Files.move(tmpFile.toPath(), datFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
+
+            Arrays.fill(dirtyPages, 0);
+            fileInSync = true;
+            saveError = null;
+            Registry.invalidate(datFile);
+        }
+        catch ( IOException ex)
+        {
+            retVal = false;
+            tmpFile.delete();
+            saveError = ex;
         }
         return retVal;
     }
+
+    // The exception that made the last save() or saveAtomic() fail, null
+    // if it succeeded.
+    public IOException getSaveError ()
+    {
+        return saveError;
+    }
+
+    // True if anything was written since the last load or save
+    public boolean isDirty ()
+    {
+        return nextDirtyPage(0) >= 0;
+    }
+
+    private int pageCount ()
+    {
+        return (Size + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    private void markDirty (int offset, int length)
+    {
+        for ( int page = offset / PAGE_SIZE; page <= (offset + length - 1) / PAGE_SIZE; page++ )
+        {
+            dirtyPages[page >> 6] |= 1L << page;
+        }
+    }
+
+    private boolean isDirty (int page)
+    {
+        return ( dirtyPages[page >> 6] & (1L << page) ) != 0;
+    }
+
+    private int nextDirtyPage (int from)
+    {
+        for ( int page = from; page < pageCount(); page++ )
+        {
+            if ( isDirty(page) )
+            {
+                return page;
+            }
+        }
+        return -1;
+    }
 }
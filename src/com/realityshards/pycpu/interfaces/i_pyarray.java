@@ -0,0 +1,9 @@
+package com.realityshards.pycpu.interfaces;
+
+// A bus device whose contents live in a plain char array, which lets the
+// CPU's memory map index the array directly instead of calling read_mem.
+public interface i_pyarray extends i_pybus {
+
+    // Word n of the array holds the value at getBaseAddress() + n.
+    char[] getData();
+}
@@ -0,0 +1,20 @@
+package com.realityshards.pycpu.interfaces;
+
+// Memory that keeps track of the pages written to it, so an incremental
+// save state only has to hold those, see PyCPU.saveState.
+//
+// Every write counts, from a CPU, another core or the host, and init()
+// marks every page. Writes straight in to memory the device hands out
+// (RamBlock.getData, DirectRamBlock.getBuffer) can't be seen, take a full
+// save state after those.
+public interface i_pydirty extends i_pybus {
+
+    // Page n is the 1 << PAGE_BITS words from address n << PAGE_BITS, the
+    // pages of the CPU's memory map.
+    int PAGE_BITS = 8;
+
+    // True if a word of page was written since the last clearDirty().
+    boolean isDirty(int page);
+
+    void clearDirty();
+}
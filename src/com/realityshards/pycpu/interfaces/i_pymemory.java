@@ -0,0 +1,11 @@
+package com.realityshards.pycpu.interfaces;
+
+// A pollable device that is plain memory, RAM that isn't an i_pyarray.
+//
+// Reads have no side effects, like any i_pypollable, but the host, another
+// core or a backend sharing the storage can change the contents without
+// the CPU or anyone else being told. A CPU polling it is idle (its loop is
+// skipped) but CpuRunner doesn't park it, see PyCPU.isIdlePollingMemory.
+// Array backed devices are always treated this way.
+public interface i_pymemory extends i_pypollable {
+}
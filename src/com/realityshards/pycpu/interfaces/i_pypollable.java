@@ -0,0 +1,18 @@
+package com.realityshards.pycpu.interfaces;
+
+// A bus device that can be read without side effects: a read doesn't
+// change the device or what the next read returns. Only writes, or a change
+// from outside the CPU (another thread, the host), do.
+//
+// A program polling such devices in a loop without writing anything can't
+// leave the loop until something outside changes them, so the CPU treats
+// it as idle (see PyCPU.isIdle) and a CpuRunner parks it. Whatever changes
+// the device from outside the CPU must then wake the runner, the way
+// AsyncPeripheral.setInputListener does for its input, or the CPU never
+// sees the change.
+//
+// RAM has no such hook, it is written from outside without notice. RAM
+// devices implement i_pymemory instead, a CPU polling them is still idle
+// but isn't parked. Array backed devices are always treated as RAM.
+public interface i_pypollable extends i_pybus {
+}
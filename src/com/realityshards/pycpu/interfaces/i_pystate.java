@@ -0,0 +1,16 @@
+package com.realityshards.pycpu.interfaces;
+
+import java.nio.ByteBuffer;
+
+// Implemented by peripherals with state that must survive a PyCPU
+// save state / restore. The buffers are little endian.
+public interface i_pystate {
+
+    // Upper bound of the bytes save_state writes.
+    int state_size();
+
+    void save_state(ByteBuffer out);
+
+    // in holds exactly what save_state wrote, its limit is the end of it.
+    void load_state(ByteBuffer in);
+}
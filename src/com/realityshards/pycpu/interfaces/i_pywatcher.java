@@ -0,0 +1,7 @@
+package com.realityshards.pycpu.interfaces;
+
+public interface i_pywatcher {
+
+    // Called after the contents of [address, address + length) have changed.
+    void mem_changed(char address, int length);
+}
@@ -0,0 +1,107 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pybus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.realityshards.pycpu.TestRoms.op;
+import static com.realityshards.pycpu.TestRoms.rom;
+import static com.realityshards.pycpu.TestRoms.userRomName;
+import static org.junit.Assert.assertEquals;
+
+// A compiled block that gets its own code rewritten while it runs has to
+// leave the CPU where the interpreter would.
+public class BlockDeoptTest
+{
+    private static final char PATCHED = 8;
+
+    private File osRom;
+    private File userRom;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        osRom = TestRoms.jumpToUserRom();
+
+        // One block, looping on itself. The write to MEMDATA in its last
+        // instruction makes the peripheral at 0x2000 rewrite the GP1
+        // immediate at 0x4005.
+        userRom = rom("deoptuser",
+                op(PyCPU.INST_SETVAL, 0, PyCPU.REG_MEMADD, PyCPU.JUMP_NONE), 0x2000,
+                op(PyCPU.INST_SETVAL, 0, PyCPU.REG_JUMP, PyCPU.JUMP_NONE), 0x4000,
+                op(PyCPU.INST_SETVAL, 0, PyCPU.REG_GP1, PyCPU.JUMP_NONE), 0,
+                op(PyCPU.INST_COPY, PyCPU.REG_GP0, PyCPU.REG_MEMDATA, PyCPU.JUMP_JUMP));
+    }
+
+    @After
+    public void tearDown()
+    {
+        osRom.delete();
+        userRom.delete();
+    }
+
+    @Test
+    public void deoptInLastInstructionStillJumps()
+    {
+        PyCPU interpreted = run(false);
+        PyCPU compiled = run(true);
+
+        assertEquals(0x4004, interpreted.getRegister(PyCPU.REG_PC));
+        assertEquals(PATCHED, interpreted.getRegister(PyCPU.REG_GP1));
+
+        for ( int reg = 0; reg < 16; reg++ )
+        {
+            assertEquals(PyCPU.registerName(reg), interpreted.getRegister(reg), compiled.getRegister(reg));
+        }
+        assertEquals(interpreted.getCycleCount(), compiled.getCycleCount());
+    }
+
+    private PyCPU run(boolean jit)
+    {
+        final UserRom code = new UserRom(0x4000, 0x10, userRomName(userRom), new RomImageRegistry());
+        i_pybus patcher = new i_pybus()
+        {
+            @Override
+            public int getSize()
+            {
+                return 1;
+            }
+
+            @Override
+            public char getBaseAddress()
+            {
+                return 0x2000;
+            }
+
+            @Override
+            public char read_mem(char address)
+            {
+                return 0;
+            }
+
+            @Override
+            public boolean write_mem(char address, char value)
+            {
+                return code.write_mem((char)0x4005, PATCHED);
+            }
+
+            @Override
+            public boolean init()
+            {
+                return true;
+            }
+        };
+
+        PyCPU cpu = new PyCPU(code, new OsROM(0x0000, osRom.getPath()), new RamBlock(0x8000, 0x100),
+                new i_pybus[] { patcher });
+        cpu.init();
+        cpu.setJitEnabled(jit);
+        cpu.setJitThreshold(1);
+        cpu.cycle(40);
+        return cpu;
+    }
+}
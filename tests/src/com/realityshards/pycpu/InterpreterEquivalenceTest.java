@@ -0,0 +1,411 @@
+package com.realityshards.pycpu;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static com.realityshards.pycpu.TestRoms.rom;
+import static org.junit.Assert.assertEquals;
+
+// Small programs with the register file and flags they ended with before the
+// registers were folded in to one array. The interpreter, the JIT and the
+// threaded tier must all still end with them.
+//
+// The programs run from the OS ROM and stay off RAM's first word, as the
+// original tree could neither fetch from the User ROM nor reach that word.
+// FNC always pushes to it, so the word expected there is the one from the
+// tree with that fixed.
+public class InterpreterEquivalenceTest
+{
+    private static final int RAM_BASE = 0x8000;
+    private static final int LOG = 0x8010;
+    private static final int CYCLES = 2000;
+
+    private static final int[] OPERANDS = { 0x7FFF, 0x0001, 0xFFFF, 0x8000, 0x0003, 0xFFFD };
+
+    private File osRom;
+
+    @After
+    public void tearDown()
+    {
+        if ( osRom != null )
+        {
+            osRom.delete();
+        }
+    }
+
+    // Every ALU op on edge operands, logging ALU and then FLAGS after each
+    // one. The FLAGS reads toggle the system bits, so the logged system bits
+    // alternate.
+    @Test
+    public void aluResultsAndFlags() throws IOException
+    {
+        assertProgram(aluProgram(), new int[] {
+                // JUMP_OFFSET, JUMP, MEMADD, MEMDATA
+                0x0000, 0x0152, 0x806C, 0x0000,
+                // GP0 - GP7
+                0x7FFF, 0x0001, 0xFFFF, 0x8000, 0x0003, 0xFFFD, 0xFFFF, 0x0000,
+                // PC, STACK, ALU, FLAGS
+                0x0152, 0x8000, 0x7FFF, 0x000E,
+        }, LOG, new int[] {
+                0x0000, 0x000F, 0x8000, 0xC000, 0x6000, 0x000F, 0xE000, 0xC008,
+                0xFFFF, 0x0007, 0x0000, 0xC00C, 0x6FFF, 0x0003, 0xEFFF, 0xC00C,
+                0x0001, 0x0003, 0x0004, 0xC00C, 0x7000, 0x0003, 0x6FFF, 0xC00C,
+                0xF000, 0x0003, 0x0003, 0xC00D, 0x0002, 0x0002, 0x0000, 0xC00D,
+                0xFFFE, 0x000B, 0xEFFA, 0xC00C, 0x8000, 0x0003, 0x0000, 0xC00D,
+                0x0001, 0x000A, 0x0000, 0xC005, 0xEFF7, 0x000B, 0x8000, 0xC005,
+                0x8001, 0x000A, 0x5555, 0xC005, 0x0000, 0x000E, 0xEAAA, 0xC009,
+                0x0007, 0x0006, 0xEFFA, 0xC009, 0x7FFF, 0x0006, 0x0000, 0xC00D,
+                0x8001, 0x0002, 0x0000, 0xC00D, 0xFFFE, 0x0002, 0x0000, 0xC00D,
+                0xEFFD, 0x000A, 0x0000, 0xC005, 0x8000, 0x000A, 0x0000, 0xC005,
+                0xFFFE, 0x000A, 0x0000, 0xC005, 0x7FFF, 0x000A, 0x7FFF, 0xC00E,
+                0x7FFF, 0x000E, 0x7FFF, 0xC00E,
+        });
+    }
+
+    // ALU flags accumulate by toggling, SET0 / SETN1 only add theirs, FLAGS
+    // reads toggle the system bits and conditional jumps follow the flags.
+    @Test
+    public void flagToggling() throws IOException
+    {
+        assertProgram(flagProgram(), new int[] {
+                // JUMP_OFFSET, JUMP, MEMADD, MEMDATA
+                0x0000, 0x00C7, 0x802E, 0x0000,
+                // GP0 - GP7
+                0x0000, 0x0000, 0x0000, 0x0000, 0x0000, 0x0004, 0x0005, 0x0000,
+                // PC, STACK, ALU, FLAGS
+                0x00C7, 0x8000, 0x0001, 0x400A,
+        }, LOG, new int[] {
+                0x000F, 0xC00F, 0x0001, 0xC00D, 0x400D, 0x800D, 0x0005, 0x400D,
+                0x0001, 0x0002, 0x0003, 0x0000, 0x0000, 0x0000, 0x0000, 0x0001,
+                0x0000, 0x0000, 0x0004, 0x0005, 0x0000, 0x0000, 0x0001, 0x0002,
+                0x0003, 0x0000, 0x0000, 0x0000, 0x0000, 0x800A,
+        });
+    }
+
+    // Reads and writes of RAM, and of addresses nothing is mapped at.
+    @Test
+    public void memoryAccess() throws IOException
+    {
+        assertProgram(memoryProgram(), new int[] {
+                // JUMP_OFFSET, JUMP, MEMADD, MEMDATA
+                0x0000, 0x002F, 0xFFFF, 0xBEEF,
+                // GP0 - GP7
+                0xBEEF, 0xBEEF, 0x4000, 0x1234, 0xBEEF, 0x1234, 0x8103, 0xBEEF,
+                // PC, STACK, ALU, FLAGS
+                0x002F, 0x8000, 0x8104, 0x800F,
+        }, 0x8100, new int[] {
+                0xBEEF, 0x1234, 0xBEEF, 0x1234, 0x8104,
+        });
+    }
+
+    // FNC pushes its frame at STACK but STACK can't be written, so it never
+    // moves and FNR reads the frame from below RAM. That fails, leaving the
+    // return address to whatever MEMDATA held.
+    @Test
+    public void callAndReturn() throws IOException
+    {
+        assertProgram(callProgram(), new int[] {
+                // JUMP_OFFSET, JUMP, MEMADD, MEMDATA
+                0x0000, 0x0009, 0x7FFE, 0x0005,
+                // GP0 - GP7
+                0x1111, 0x1112, 0x0000, 0x400F, 0x0005, 0x8000, 0x0000, 0x0000,
+                // PC, STACK, ALU, FLAGS
+                0x0009, 0x8000, 0x1112, 0x800F,
+        }, RAM_BASE, new int[] {
+                0x8000, 0x0005, 0x8003,
+        });
+    }
+
+    private static int[] aluProgram()
+    {
+        Program p = new Program();
+
+        p.operands();
+        p.startLog(LOG);
+        p.logged(PyCPU.INST_UINC, PyCPU.REG_GP2, 0);
+        p.logged(PyCPU.INST_UINC, PyCPU.REG_GP0, 0);
+        p.logged(PyCPU.INST_SINC, PyCPU.REG_GP0, 0);
+        p.logged(PyCPU.INST_SINC, PyCPU.REG_GP2, 0);
+        p.logged(PyCPU.INST_UDEC, PyCPU.REG_GP7, 0);
+        p.logged(PyCPU.INST_UDEC, PyCPU.REG_GP1, 0);
+        p.logged(PyCPU.INST_SDEC, PyCPU.REG_GP3, 0);
+        p.logged(PyCPU.INST_SDEC, PyCPU.REG_GP7, 0);
+        p.logged(PyCPU.INST_UADD, PyCPU.REG_GP2, PyCPU.REG_GP1);
+        p.logged(PyCPU.INST_UADD, PyCPU.REG_GP1, PyCPU.REG_GP4);
+        p.logged(PyCPU.INST_SADD, PyCPU.REG_GP0, PyCPU.REG_GP1);
+        p.logged(PyCPU.INST_SADD, PyCPU.REG_GP3, PyCPU.REG_GP2);
+        p.logged(PyCPU.INST_SADD, PyCPU.REG_GP5, PyCPU.REG_GP4);
+        p.logged(PyCPU.INST_USUB, PyCPU.REG_GP1, PyCPU.REG_GP2);
+        p.logged(PyCPU.INST_USUB, PyCPU.REG_GP4, PyCPU.REG_GP1);
+        p.logged(PyCPU.INST_USUB, PyCPU.REG_GP4, PyCPU.REG_GP4);
+        p.logged(PyCPU.INST_SSUB, PyCPU.REG_GP3, PyCPU.REG_GP1);
+        p.logged(PyCPU.INST_SSUB, PyCPU.REG_GP5, PyCPU.REG_GP4);
+        p.logged(PyCPU.INST_SSUB, PyCPU.REG_GP0, PyCPU.REG_GP2);
+        p.logged(PyCPU.INST_UMUL, PyCPU.REG_GP0, PyCPU.REG_GP4);
+        p.logged(PyCPU.INST_UMUL, PyCPU.REG_GP2, PyCPU.REG_GP2);
+        p.logged(PyCPU.INST_UMUL, PyCPU.REG_GP7, PyCPU.REG_GP2);
+        p.logged(PyCPU.INST_SMUL, PyCPU.REG_GP5, PyCPU.REG_GP4);
+        p.logged(PyCPU.INST_SMUL, PyCPU.REG_GP3, PyCPU.REG_GP5);
+        p.logged(PyCPU.INST_SMUL, PyCPU.REG_GP2, PyCPU.REG_GP2);
+        p.logged(PyCPU.INST_UDIV, PyCPU.REG_GP2, PyCPU.REG_GP4);
+        p.logged(PyCPU.INST_UDIV, PyCPU.REG_GP1, PyCPU.REG_GP4);
+        p.logged(PyCPU.INST_SDIV, PyCPU.REG_GP5, PyCPU.REG_GP4);
+        p.logged(PyCPU.INST_SDIV, PyCPU.REG_GP3, PyCPU.REG_GP5);
+        p.logged(PyCPU.INST_SDIV, PyCPU.REG_GP0, PyCPU.REG_GP2);
+        p.logged(PyCPU.INST_AND, PyCPU.REG_GP0, PyCPU.REG_GP2);
+        p.logged(PyCPU.INST_AND, PyCPU.REG_GP3, PyCPU.REG_GP0);
+        p.logged(PyCPU.INST_OR, PyCPU.REG_GP3, PyCPU.REG_GP1);
+        p.logged(PyCPU.INST_OR, PyCPU.REG_GP7, PyCPU.REG_GP7);
+        p.logged(PyCPU.INST_NOT, PyCPU.REG_GP1, 0);
+        p.logged(PyCPU.INST_NOT, PyCPU.REG_GP2, 0);
+        p.logged(PyCPU.INST_NEG, PyCPU.REG_GP4, 0);
+        p.logged(PyCPU.INST_NEG, PyCPU.REG_GP7, 0);
+        p.logged(PyCPU.INST_NEG, PyCPU.REG_GP3, 0);
+        p.logged(PyCPU.INST_BSL, PyCPU.REG_GP3, 0);
+        p.logged(PyCPU.INST_BSL, PyCPU.REG_GP0, 0);
+        p.logged(PyCPU.INST_BSR, PyCPU.REG_GP1, 0);
+        p.logged(PyCPU.INST_BSR, PyCPU.REG_GP2, 0);
+        p.logged(PyCPU.INST_SET0, 0, PyCPU.REG_GP6);
+        p.logged(PyCPU.INST_SET1, 0, PyCPU.REG_GP6);
+        p.logged(PyCPU.INST_SETN1, 0, PyCPU.REG_GP6);
+        p.halt();
+        return p.words();
+    }
+
+    private static int[] flagProgram()
+    {
+        Program p = new Program();
+
+        // Toggled twice by ALU ops, added to by SET0 and SETN1.
+        p.startLog(LOG);
+        p.op(PyCPU.INST_UINC, PyCPU.REG_GP7, 0, PyCPU.JUMP_NONE);
+        p.log(PyCPU.REG_FLAGS);
+        p.log(PyCPU.REG_FLAGS);
+        p.op(PyCPU.INST_UDEC, PyCPU.REG_GP7, 0, PyCPU.JUMP_NONE);
+        p.log(PyCPU.REG_FLAGS);
+        p.op(PyCPU.INST_SET0, 0, PyCPU.REG_GP6, PyCPU.JUMP_NONE);
+        p.op(PyCPU.INST_SETN1, 0, PyCPU.REG_GP5, PyCPU.JUMP_NONE);
+        p.log(PyCPU.REG_FLAGS);
+
+        // An error, read out twice.
+        p.setval(PyCPU.REG_MEMADD, 0x1234);
+        p.startLog(p.logAt);
+        p.log(PyCPU.REG_FLAGS);
+        p.log(PyCPU.REG_FLAGS);
+
+        // Would sum 5 down to 1 in GP6, but the UADD and UDEC toggle ZERO
+        // back on and the loop stops after one pass.
+        p.setval(PyCPU.REG_GP5, 5);
+        p.setval(PyCPU.REG_GP6, 0);
+        p.setval(PyCPU.REG_JUMP, p.here() + 2);
+        p.op(PyCPU.INST_UADD, PyCPU.REG_GP6, PyCPU.REG_GP5, PyCPU.JUMP_NONE);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_ALU, PyCPU.REG_GP6, PyCPU.JUMP_NONE);
+        p.op(PyCPU.INST_UDEC, PyCPU.REG_GP5, 0, PyCPU.JUMP_NONE);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_ALU, PyCPU.REG_GP5, PyCPU.JUMP_NZ);
+        p.log(PyCPU.REG_GP6);
+        p.log(PyCPU.REG_FLAGS);
+
+        // Every condition after each of three ALU ops.
+        p.op(PyCPU.INST_SDEC, PyCPU.REG_GP7, 0, PyCPU.JUMP_NONE);
+        p.conditions();
+        p.op(PyCPU.INST_UADD, PyCPU.REG_GP7, PyCPU.REG_GP7, PyCPU.JUMP_NONE);
+        p.conditions();
+        p.op(PyCPU.INST_UINC, PyCPU.REG_GP7, 0, PyCPU.JUMP_NONE);
+        p.conditions();
+        p.log(PyCPU.REG_FLAGS);
+        p.halt();
+        return p.words();
+    }
+
+    private static int[] memoryProgram()
+    {
+        Program p = new Program();
+
+        p.setval(PyCPU.REG_MEMADD, 0x8100);
+        p.setval(PyCPU.REG_MEMDATA, 0xBEEF);
+        p.setval(PyCPU.REG_MEMADD, 0x8101);
+        p.setval(PyCPU.REG_MEMDATA, 0x1234);
+        p.setval(PyCPU.REG_MEMADD, 0x8100);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_MEMDATA, PyCPU.REG_GP0, PyCPU.JUMP_NONE);
+
+        // Nothing at 0x0100 in data memory, MEMDATA keeps its value.
+        p.setval(PyCPU.REG_MEMADD, 0x0100);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_MEMDATA, PyCPU.REG_GP1, PyCPU.JUMP_NONE);
+        p.setval(PyCPU.REG_MEMDATA, 0x5555);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_FLAGS, PyCPU.REG_GP2, PyCPU.JUMP_NONE);
+
+        p.setval(PyCPU.REG_MEMADD, 0x8101);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_MEMDATA, PyCPU.REG_GP3, PyCPU.JUMP_NONE);
+        p.setval(PyCPU.REG_MEMADD, 0xFFFF);
+        p.setval(PyCPU.REG_MEMDATA, 0x7777);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_GP0, PyCPU.REG_MEMDATA, PyCPU.JUMP_NONE);
+
+        // Copies 0x8100 - 0x8101 to 0x8102 - 0x8103 through the registers.
+        p.setval(PyCPU.REG_MEMADD, 0x8100);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_MEMDATA, PyCPU.REG_GP4, PyCPU.JUMP_NONE);
+        p.setval(PyCPU.REG_MEMADD, 0x8101);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_MEMDATA, PyCPU.REG_GP5, PyCPU.JUMP_NONE);
+        p.setval(PyCPU.REG_MEMADD, 0x8102);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_GP4, PyCPU.REG_MEMDATA, PyCPU.JUMP_NONE);
+        p.setval(PyCPU.REG_MEMADD, 0x8103);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_GP5, PyCPU.REG_MEMDATA, PyCPU.JUMP_NONE);
+
+        // MEMADD from the ALU.
+        p.setval(PyCPU.REG_GP6, 0x8103);
+        p.op(PyCPU.INST_UINC, PyCPU.REG_GP6, 0, PyCPU.JUMP_NONE);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_ALU, PyCPU.REG_MEMADD, PyCPU.JUMP_NONE);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_ALU, PyCPU.REG_MEMDATA, PyCPU.JUMP_NONE);
+        p.setval(PyCPU.REG_MEMADD, 0xFFFF);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_MEMDATA, PyCPU.REG_GP7, PyCPU.JUMP_NONE);
+        p.halt();
+        return p.words();
+    }
+
+    private static int[] callProgram()
+    {
+        final int sub = 0x40;
+        Program p = new Program();
+
+        p.setval(PyCPU.REG_GP0, 0x1111);
+        p.setval(PyCPU.REG_JUMP, sub);
+        p.op(PyCPU.INST_FNC, 0, 0, PyCPU.JUMP_NONE);
+        int back = p.here();
+        p.op(PyCPU.INST_COPY, PyCPU.REG_FLAGS, PyCPU.REG_GP3, PyCPU.JUMP_NONE);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_MEMDATA, PyCPU.REG_GP4, PyCPU.JUMP_NONE);
+        p.halt();
+
+        // GP1 = GP0 + 1, returning through MEMDATA.
+        p.at(sub);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_STACK, PyCPU.REG_GP5, PyCPU.JUMP_NONE);
+        p.op(PyCPU.INST_UINC, PyCPU.REG_GP0, 0, PyCPU.JUMP_NONE);
+        p.op(PyCPU.INST_COPY, PyCPU.REG_ALU, PyCPU.REG_GP1, PyCPU.JUMP_NONE);
+        p.setval(PyCPU.REG_MEMADD, 0x8100);
+        p.setval(PyCPU.REG_MEMDATA, back);
+        p.op(PyCPU.INST_FNR, 0, 0, PyCPU.JUMP_NONE);
+        return p.words();
+    }
+
+    private void assertProgram(int[] program, int[] registers, int logStart, int[] log) throws IOException
+    {
+        osRom = rom("equivos", program);
+
+        for ( int tier = 0; tier < 3; tier++ )
+        {
+            RamBlock ram = new RamBlock(RAM_BASE, 0x8000);
+            PyCPU cpu = new PyCPU(new UserRom(0x4000, 0x100, "nothing", new RomImageRegistry()),
+                    new OsROM(0x0000, osRom.getPath()), ram, null);
+
+            cpu.init();
+            cpu.setJitEnabled(tier == 1);
+            cpu.setJitThreshold(1);
+            cpu.setThreadedEnabled(tier == 2);
+            cpu.cycle(CYCLES);
+
+            String tierName = new String[] { "interpreter", "jit", "threaded" }[tier];
+            for ( int reg = 0; reg < 16; reg++ )
+            {
+                assertEquals(tierName + " " + PyCPU.registerName(reg), registers[reg], cpu.getRegister(reg));
+            }
+            for ( int i = 0; i < log.length; i++ )
+            {
+                assertEquals(tierName + " RAM at " + Integer.toHexString(logStart + i),
+                        log[i], ram.read_mem((char)(logStart + i)));
+            }
+        }
+    }
+
+    // Lays out a program from address 0.
+    private static final class Program
+    {
+        private final ArrayList<Integer> words = new ArrayList<>();
+        private int logAt;
+
+        int here()
+        {
+            return words.size();
+        }
+
+        void at(int address)
+        {
+            while ( words.size() < address )
+            {
+                words.add(0);
+            }
+        }
+
+        void op(int inst, int source, int dest, int jump)
+        {
+            words.add(TestRoms.op(inst, source, dest, jump));
+        }
+
+        void setval(int dest, int value)
+        {
+            op(PyCPU.INST_SETVAL, 0, dest, PyCPU.JUMP_NONE);
+            words.add(value);
+        }
+
+        // GP0 - GP5 from OPERANDS, GP6 and GP7 stay 0.
+        void operands()
+        {
+            for ( int i = 0; i < OPERANDS.length; i++ )
+            {
+                setval(PyCPU.REG_GP0 + i, OPERANDS[i]);
+            }
+        }
+
+        // Sets MEMADD to where log() writes next.
+        void startLog(int address)
+        {
+            logAt = address;
+            setval(PyCPU.REG_MEMADD, address);
+        }
+
+        // Writes reg at MEMADD and moves MEMADD on, with SETVAL so only the
+        // reads of FLAGS change the flags.
+        void log(int reg)
+        {
+            op(PyCPU.INST_COPY, reg, PyCPU.REG_MEMDATA, PyCPU.JUMP_NONE);
+            startLog(logAt + 1);
+        }
+
+        // Logs 0 for every jump condition taken and the condition for every
+        // one that isn't.
+        void conditions()
+        {
+            for ( int jump = PyCPU.JUMP_GTZ; jump <= PyCPU.JUMP_JUMP; jump++ )
+            {
+                setval(PyCPU.REG_JUMP, here() + 5);
+                op(PyCPU.INST_COPY, PyCPU.REG_GP7, PyCPU.REG_GP7, jump);
+                setval(PyCPU.REG_MEMDATA, jump);
+                startLog(logAt + 1);
+            }
+        }
+
+        void logged(int inst, int source, int dest)
+        {
+            op(inst, source, dest, PyCPU.JUMP_NONE);
+            log(PyCPU.REG_ALU);
+            log(PyCPU.REG_FLAGS);
+        }
+
+        void halt()
+        {
+            setval(PyCPU.REG_JUMP, here() + 2);
+            op(PyCPU.INST_COPY, PyCPU.REG_GP7, PyCPU.REG_GP7, PyCPU.JUMP_JUMP);
+        }
+
+        int[] words()
+        {
+            int[] array = new int[words.size()];
+            for ( int i = 0; i < array.length; i++ )
+            {
+                array[i] = words.get(i);
+            }
+            return array;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.realityshards.pycpu;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.realityshards.pycpu.TestRoms.rom;
+import static com.realityshards.pycpu.TestRoms.userRomName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Stores through the memory map may only go straight in to RAM arrays, ROM
+// arrays are shared with every ROM loaded from the same image.
+public class MemoryMapTest
+{
+    private File image;
+    private RomImageRegistry registry;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        image = rom("mapimage", 0x1111, 0x2222, 0x3333, 0x4444);
+        registry = new RomImageRegistry();
+    }
+
+    @After
+    public void tearDown()
+    {
+        image.delete();
+    }
+
+    @Test
+    public void userRomStoreIsCopiedOnWrite()
+    {
+        UserRom mapped = new UserRom(0x4000, 0x100, userRomName(image), registry);
+        UserRom other = new UserRom(0x4000, 0x100, userRomName(image), registry);
+        final int[] changed = { -1 };
+
+        mapped.init();
+        other.init();
+        mapped.addWatcher((address, length) -> changed[0] = address);
+
+        MemoryMap map = new MemoryMap(false);
+        map.map(mapped, 0x4000, 0x8000);
+
+        assertTrue(map.write((char)0x4001, (char)0xBEEF));
+        assertEquals(0xBEEF, map.read((char)0x4001));
+        assertTrue(mapped.isModified());
+        assertEquals(0x4001, changed[0]);
+
+        // The image and the other ROM on it are untouched.
+        assertEquals(0x2222, mapped.getImage().read(1));
+        assertEquals(0x2222, other.read_mem((char)0x4001));
+        assertFalse(other.isModified());
+    }
+
+    @Test
+    public void osRomStoreFails()
+    {
+        OsROM os = new OsROM(0x0000, image.getPath(), registry);
+
+        os.init();
+
+        MemoryMap map = new MemoryMap(false);
+        map.map(os, 0x0000, 0x1000);
+
+        assertFalse(map.write((char)0x0002, (char)0xBEEF));
+        assertEquals(0x3333, map.read((char)0x0002));
+        assertEquals(0x3333, os.getImage().read(2));
+    }
+
+    @Test
+    public void ramStoreGoesToItsArray()
+    {
+        RamBlock ram = new RamBlock(0x8000, 0x200);
+        MemoryMap map = new MemoryMap(false);
+
+        map.map(ram, 0x8000, 0x10000);
+
+        assertTrue(map.write((char)0x8123, (char)0xBEEF));
+        assertEquals(0xBEEF, ram.getData()[0x123]);
+        assertEquals(0xBEEF, map.read((char)0x8123));
+    }
+}
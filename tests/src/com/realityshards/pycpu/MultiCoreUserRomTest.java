@@ -0,0 +1,133 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pybus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static com.realityshards.pycpu.TestRoms.op;
+import static com.realityshards.pycpu.TestRoms.rom;
+import static com.realityshards.pycpu.TestRoms.userRomName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+// Cores of a MultiCore rewriting their User ROM while the others run must
+// neither see each other's writes nor have their code remapped under them.
+public class MultiCoreUserRomTest
+{
+    private static final int CORES = 4;
+    private static final int PATCHED = 0x4005;     // The GP1 immediate
+    private static final int LOOPS = 10000;
+
+    private File osRom;
+    private File userRom;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        osRom = TestRoms.jumpToUserRom();
+
+        // Counts loops in GP0 and writes the count to the peripheral at
+        // 0x2000, which stores it in this core's User ROM as the immediate
+        // the next loop loads GP1 with.
+        userRom = rom("multiuser",
+                op(PyCPU.INST_SETVAL, 0, PyCPU.REG_MEMADD, PyCPU.JUMP_NONE), 0x2000,
+                op(PyCPU.INST_SETVAL, 0, PyCPU.REG_JUMP, PyCPU.JUMP_NONE), 0x4004,
+                op(PyCPU.INST_SETVAL, 0, PyCPU.REG_GP1, PyCPU.JUMP_NONE), 0,
+                op(PyCPU.INST_UINC, PyCPU.REG_GP1, 0, PyCPU.JUMP_NONE),
+                op(PyCPU.INST_COPY, PyCPU.REG_ALU, PyCPU.REG_GP0, PyCPU.JUMP_NONE),
+                op(PyCPU.INST_COPY, PyCPU.REG_GP0, PyCPU.REG_MEMDATA, PyCPU.JUMP_JUMP));
+    }
+
+    @After
+    public void tearDown()
+    {
+        osRom.delete();
+        userRom.delete();
+    }
+
+    @Test
+    public void userRomWritesStayWithTheirCore()
+    {
+        MultiCore cores = new MultiCore(CORES, new UserRom(0x4000, 0x10, userRomName(userRom), new RomImageRegistry()),
+                new OsROM(0x0000, osRom.getPath()), new SharedRamBlock(0x8000, 0x100), null, 0x3000);
+
+        try
+        {
+            for ( int core = 0; core < CORES; core++ )
+            {
+                cores.getCore(core).addPeripheral(patcher(cores.getUserRom(core)));
+            }
+            cores.init();
+
+            // Every tier, the JIT rewrites the running block each loop.
+            for ( int core = 0; core < CORES; core++ )
+            {
+                cores.getCore(core).setJitEnabled(core % 3 == 1);
+                cores.getCore(core).setJitThreshold(1);
+                cores.getCore(core).setThreadedEnabled(core % 3 == 2);
+            }
+
+            // Jumps in to the loop, then LOOPS times round it.
+            cores.cycle(4);
+            for ( int i = 0; i < LOOPS / 100; i++ )
+            {
+                cores.cycle(4 * 100);
+            }
+
+            for ( int core = 0; core < CORES; core++ )
+            {
+                PyCPU cpu = cores.getCore(core);
+
+                assertNull(cores.getFault(core));
+                assertEquals("flags of core " + core, 0, cpu.getRegister(PyCPU.REG_FLAGS) & PyCPU.FLAG_SYSTEM_MASK);
+                assertEquals("GP0 of core " + core, LOOPS, cpu.getRegister(PyCPU.REG_GP0));
+                assertEquals("GP1 of core " + core, LOOPS - 1, cpu.getRegister(PyCPU.REG_GP1));
+                assertEquals("User ROM of core " + core, LOOPS, cores.getUserRom(core).read_mem((char)PATCHED));
+            }
+        }
+        finally
+        {
+            cores.shutdown();
+        }
+    }
+
+    private static i_pybus patcher(final i_pybus code)
+    {
+        return new i_pybus()
+        {
+            @Override
+            public int getSize()
+            {
+                return 1;
+            }
+
+            @Override
+            public char getBaseAddress()
+            {
+                return 0x2000;
+            }
+
+            @Override
+            public char read_mem(char address)
+            {
+                return 0;
+            }
+
+            @Override
+            public boolean write_mem(char address, char value)
+            {
+                return code.write_mem((char)PATCHED, value);
+            }
+
+            @Override
+            public boolean init()
+            {
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,190 @@
+package com.realityshards.pycpu;
+
+import com.realityshards.pycpu.interfaces.i_pybus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.realityshards.pycpu.TestRoms.op;
+import static com.realityshards.pycpu.TestRoms.rom;
+import static com.realityshards.pycpu.TestRoms.userRomName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SaveStateTest
+{
+    private File osRom;
+    private File userRom;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        osRom = TestRoms.jumpToUserRom();
+
+        // Counts in GP0 and stores the count at 0x8000.
+        userRom = rom("stateuser",
+                op(PyCPU.INST_SETVAL, 0, PyCPU.REG_MEMADD, PyCPU.JUMP_NONE), 0x8000,
+                op(PyCPU.INST_SETVAL, 0, PyCPU.REG_JUMP, PyCPU.JUMP_NONE), 0x4004,
+                op(PyCPU.INST_UINC, PyCPU.REG_GP0, 0, PyCPU.JUMP_NONE),
+                op(PyCPU.INST_COPY, PyCPU.REG_ALU, PyCPU.REG_GP0, PyCPU.JUMP_NONE),
+                op(PyCPU.INST_COPY, PyCPU.REG_GP0, PyCPU.REG_MEMDATA, PyCPU.JUMP_JUMP));
+    }
+
+    @After
+    public void tearDown()
+    {
+        osRom.delete();
+        userRom.delete();
+    }
+
+    @Test
+    public void fullStateRoundTrips()
+    {
+        RamBlock ram = new RamBlock(0x8000, 0x1000);
+        PyCPU cpu = cpu(ram);
+
+        cpu.cycle(1000);
+        ram.write_mem((char)0x8a00, (char)0x1234);
+        ByteBuffer state = save(cpu, false);
+
+        RamBlock restoredRam = new RamBlock(0x8000, 0x1000);
+        PyCPU restored = cpu(restoredRam);
+
+        restored.cycle(77);
+        restored.loadState(state);
+        assertSameState(cpu, ram, restored, restoredRam);
+
+        // And both carry on alike.
+        cpu.cycle(500);
+        restored.cycle(500);
+        assertSameState(cpu, ram, restored, restoredRam);
+    }
+
+    @Test
+    public void incrementalStateHoldsEveryWrittenPage()
+    {
+        SharedRamBlock ram = new SharedRamBlock(0x8000, 0x1000);
+        PyCPU cpu = cpu(ram);
+        AtomicUnit atomics = new AtomicUnit(ram, 0x3000, 1);
+
+        cpu.cycle(1000);
+        ByteBuffer full = save(cpu, false);
+
+        RamBlock restoredRam = new RamBlock(0x8000, 0x1000);
+        PyCPU restored = cpu(restoredRam);
+        restored.loadState(full);
+
+        // Written by the CPU, the host and an atomic add.
+        cpu.cycle(1000);
+        ram.write_mem((char)0x8a00, (char)0x1234);
+        i_pybus port = atomics.port(0);
+        port.write_mem((char)(0x3000 + AtomicUnit.REG_ADDRESS), (char)0x8c10);
+        port.write_mem((char)(0x3000 + AtomicUnit.REG_VALUE), (char)5);
+        port.read_mem((char)(0x3000 + AtomicUnit.REG_ADD));
+
+        ByteBuffer incremental = save(cpu, true);
+        assertTrue(incremental.limit() < full.limit());
+
+        restored.loadState(incremental);
+        assertSameState(cpu, ram, restored, restoredRam);
+        assertEquals(0x1234, restoredRam.read_mem((char)0x8a00));
+        assertEquals(5, restoredRam.read_mem((char)0x8c10));
+
+        // Nothing was written since, only the registers change.
+        assertFalse(ram.isDirty(0x8a));
+        ByteBuffer empty = save(cpu, true);
+        restored.loadState(empty);
+        assertSameState(cpu, ram, restored, restoredRam);
+    }
+
+    @Test
+    public void badStateChangesNothing()
+    {
+        RamBlock ram = new RamBlock(0x8000, 0x1000);
+        PyCPU cpu = cpu(ram);
+
+        cpu.cycle(1000);
+        ByteBuffer state = save(cpu, false);
+
+        RamBlock otherRam = new RamBlock(0x8000, 0x1000);
+        PyCPU other = cpu(otherRam);
+        other.cycle(77);
+        char[] regs = registers(other);
+        char[] words = otherRam.getData().clone();
+
+        // Cut short in the peripheral count at the end.
+        ByteBuffer cut = state.duplicate();
+        cut.limit(cut.limit() - 2);
+        assertRejected(other, cut);
+
+        // RAM of another size.
+        PyCPU small = cpu(new RamBlock(0x8000, 0x800));
+        small.cycle(1000);
+        assertRejected(other, save(small, false));
+
+        assertTrue(Arrays.equals(regs, registers(other)));
+        assertEquals(77, other.getCycleCount());
+        assertTrue(Arrays.equals(words, otherRam.getData()));
+    }
+
+    private PyCPU cpu(i_pybus ram)
+    {
+        PyCPU cpu = new PyCPU(new UserRom(0x4000, 0x10, userRomName(userRom), new RomImageRegistry()),
+                new OsROM(0x0000, osRom.getPath()), ram, null);
+        cpu.init();
+        return cpu;
+    }
+
+    private static ByteBuffer save(PyCPU cpu, boolean incremental)
+    {
+        ByteBuffer state = ByteBuffer.allocate(cpu.getStateSize());
+        cpu.saveState(state, incremental);
+        state.flip();
+        return state;
+    }
+
+    private static char[] registers(PyCPU cpu)
+    {
+        char[] regs = new char[17];
+        for ( int reg = 0; reg < 16; reg++ )
+        {
+            regs[reg] = cpu.getRegister(reg);
+        }
+        regs[16] = cpu.getInstruction();
+        return regs;
+    }
+
+    private static void assertSameState(PyCPU cpu, i_pybus ram, PyCPU restored, i_pybus restoredRam)
+    {
+        for ( int reg = 0; reg < 16; reg++ )
+        {
+            assertEquals(PyCPU.registerName(reg), cpu.getRegister(reg), restored.getRegister(reg));
+        }
+        assertEquals(cpu.getInstruction(), restored.getInstruction());
+        assertEquals(cpu.getCycleCount(), restored.getCycleCount());
+        for ( int address = 0x8000; address < 0x9000; address++ )
+        {
+            assertEquals("RAM at " + Integer.toHexString(address),
+                    ram.read_mem((char)address), restoredRam.read_mem((char)address));
+        }
+    }
+
+    private static void assertRejected(PyCPU cpu, ByteBuffer state)
+    {
+        try
+        {
+            cpu.loadState(state);
+        }
+        catch ( IllegalArgumentException ex )
+        {
+            return;
+        }
+        throw new AssertionError("State was loaded");
+    }
+}
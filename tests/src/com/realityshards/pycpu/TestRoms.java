@@ -0,0 +1,58 @@
+package com.realityshards.pycpu;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Builds instructions and ROM image files for the tests.
+final class TestRoms
+{
+    private TestRoms()
+    {
+    }
+
+    // IIIII JJJ SSSS DDDD
+    static int op(int inst, int source, int dest, int jump)
+    {
+        return (inst << 11) | (jump << 8) | (source << 4) | dest;
+    }
+
+    // Writes words little endian, the format OsROM and UserRom load.
+    static File rom(String prefix, int... words) throws IOException
+    {
+        File file = File.createTempFile(prefix, ".dat");
+        byte[] bytes = new byte[words.length * 2];
+
+        for ( int i = 0; i < words.length; i++ )
+        {
+            bytes[i * 2] = (byte)words[i];
+            bytes[i * 2 + 1] = (byte)(words[i] >> 8);
+        }
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try
+        {
+            fos.write(bytes);
+        }
+        finally
+        {
+            fos.close();
+        }
+        return file;
+    }
+
+    // An OS ROM that jumps straight in to the User ROM.
+    static File jumpToUserRom() throws IOException
+    {
+        return rom("osrom",
+                op(PyCPU.INST_SETVAL, 0, PyCPU.REG_JUMP, PyCPU.JUMP_NONE), PyCPU.USER_ROM_START,
+                op(PyCPU.INST_COPY, PyCPU.REG_GP7, PyCPU.REG_GP7, PyCPU.JUMP_JUMP));
+    }
+
+    // UserRom takes the file name without the .dat extension.
+    static String userRomName(File file)
+    {
+        String path = file.getPath();
+        return path.substring(0, path.length() - ".dat".length());
+    }
+}
@@ -0,0 +1,55 @@
+package com.realityshards.pycpu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class TraceRecorderTest
+{
+    @Test
+    public void sequenceSurvivesLongCaptures() throws IOException
+    {
+        TraceRecorder trace = new TraceRecorder(4);
+
+        // Past any field a record could hold the sequence in, and round
+        // the ring so the oldest records are gone.
+        trace.instruction((char)0x4000, (char)0, (char)0, (char)0);
+        trace.idle(Integer.MAX_VALUE);
+        trace.idle(Integer.MAX_VALUE);
+        trace.instruction((char)0x4001, (char)0, (char)0, (char)0);
+        trace.idle(Integer.MAX_VALUE);
+        trace.instruction((char)0x4002, (char)0, (char)0, (char)0);
+
+        File dump = File.createTempFile("trace", ".dump");
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+        try
+        {
+            trace.dump(dump);
+            TraceDecoder.decode(dump, new PrintStream(text, true));
+        }
+        finally
+        {
+            dump.delete();
+        }
+
+        String[] lines = text.toString().split("\\R");
+        long max = Integer.MAX_VALUE;
+
+        assertEquals(5, lines.length);
+        assertEquals(1 + max, sequence(lines[1]));
+        assertEquals(1 + 2 * max, sequence(lines[2]));
+        assertEquals(2 + 2 * max, sequence(lines[3]));
+        assertEquals(2 + 3 * max, sequence(lines[4]));
+    }
+
+    private static long sequence(String line)
+    {
+        return Long.parseLong(line.trim().split("\\s+")[0]);
+    }
+}